@@ -0,0 +1,64 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.benchmark;
+
+import com.cadalys.heroku.archive.ArchiveObject;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.sql.Connection;
+
+/**
+ * Cost of archive table indexes on the archive trigger insert path. The same bulk delete is run against an
+ * archive table without opted-in indexes and one with indexes of the given columns
+ * <p/>
+ * Arguments: deleted rows, 100000 by default, and comma separated indexed columns,
+ * name,parentid,lastmodifieddate,archiveddate by default
+ */
+public class ArchiveIndexBenchmark {
+
+    private static final String TABLE_NAME = "bench_archive_index";
+
+    public static void main(String[] args) throws Exception {
+        final int rows = BenchmarkSupport.parseSizes(args, 0, 100000)[0];
+        final String[] columns = (args.length > 1 ? args[1] : "name,parentid,lastmodifieddate,archiveddate")
+                .split(",");
+        try (final ConfigurableApplicationContext context = BenchmarkSupport.start();
+             final Connection connection = BenchmarkSupport.connect(context)) {
+            for (String[] indexedColumns : new String[][]{null, columns}) {
+                BenchmarkSupport.createTables(connection, TABLE_NAME);
+                final ArchiveObject object = BenchmarkSupport.archiveObject(TABLE_NAME);
+                object.setIndexedColumns(indexedColumns);
+                BenchmarkSupport.setupArchive(context, object);
+                BenchmarkSupport.insertPlannedRows(connection, TABLE_NAME, rows);
+
+                BenchmarkSupport.measure(indexedColumns == null ? "delete, no opted-in indexes" :
+                                "delete, indexes of " + String.join(",", indexedColumns), rows,
+                        () -> BenchmarkSupport.execute(connection,
+                                "DELETE FROM " + BenchmarkSupport.SCHEMA + "." + TABLE_NAME));
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.benchmark;
+
+import com.cadalys.heroku.CdalysDataArchivingApplication;
+import com.cadalys.heroku.archive.ArchiveObject;
+import com.cadalys.heroku.archive.ArchiveObjects;
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.stereotype.service.ArchiveService;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shared setup of the benchmarks. The application is started in-process against the database of DATABASE_URL,
+ * so benchmarks exercise the same services, triggers and statements as the running app. Benchmarks drop and
+ * recreate their own tables, they must only be run against a local database
+ */
+final class BenchmarkSupport {
+
+    static final String SCHEMA = DataSourceConfiguration.SCHEMA_NAME;
+
+    static final String PLAN_TABLE_NAME = "cadarch__archive_plan__c";
+
+    private static final String SOURCE_SFID_EXPRESSION = "'bch' || lpad(g::text, 15, '0')";
+
+    private static final String PLAN_SFID_EXPRESSION = "'pln' || lpad(g::text, 15, '0')";
+
+    private static final String SOURCE_TABLE_STATEMENT =
+            "DROP TABLE IF EXISTS " + SCHEMA + ".%1$s, " + SCHEMA + "." + ArchiveService.ARCHIVE_TABLE_PREFIX +
+                    "%1$s CASCADE; CREATE TABLE " + SCHEMA + ".%1$s (id serial PRIMARY KEY, sfid varchar(18), " +
+                    "name varchar(80), parentid varchar(18), lastmodifieddate timestamp, isdeleted boolean, " +
+                    "systemmodstamp timestamp); CREATE UNIQUE INDEX ON " + SCHEMA + ".%1$s (sfid)";
+
+    private static final String PLAN_TABLE_STATEMENT =
+            "CREATE TABLE IF NOT EXISTS " + SCHEMA + "." + PLAN_TABLE_NAME + " (id serial PRIMARY KEY, " +
+                    "sfid varchar(18), name varchar(80), cadarch__plan_type__c varchar(255), " +
+                    "cadarch__type__c varchar(255), cadarch__sourceid__c varchar(18), lastmodifieddate timestamp, " +
+                    "isdeleted boolean, systemmodstamp timestamp)";
+
+    private static final String INSERT_ROWS_STATEMENT =
+            "INSERT INTO " + SCHEMA + ".%1$s (sfid, name, lastmodifieddate, isdeleted, systemmodstamp) " +
+                    "SELECT %2$s, 'benchmark row ' || g, now(), false, now() FROM generate_series(1, %3$d) g";
+
+    private static final String INSERT_PLAN_STATEMENT =
+            "INSERT INTO " + SCHEMA + "." + PLAN_TABLE_NAME + " (sfid, cadarch__plan_type__c, cadarch__type__c, " +
+                    "cadarch__sourceid__c, lastmodifieddate, isdeleted) SELECT %1$s, 'Archive', '%2$s', %3$s, " +
+                    "now(), false FROM generate_series(1, %4$d) g";
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Start the application with the properties on a random port
+     *
+     * @param properties key=value pairs overriding application.properties
+     */
+    static ConfigurableApplicationContext start(String... properties) {
+        final List<String> all = new ArrayList<>(Arrays.asList("server.port=0", "logging.level.com.cadalys=WARN"));
+        Collections.addAll(all, properties);
+        return new SpringApplicationBuilder(CdalysDataArchivingApplication.class)
+                .properties(all.toArray(new String[0]))
+                .run();
+    }
+
+    static Connection connect(ConfigurableApplicationContext context) throws Exception {
+        final Connection connection = context.getBean(DataSource.class).getConnection();
+        connection.setAutoCommit(true);
+        return connection;
+    }
+
+    /**
+     * Recreate the source table and drop its archive table, the plan table is created when missing
+     */
+    static void createTables(Connection connection, String table) throws Exception {
+        execute(connection, PLAN_TABLE_STATEMENT);
+        execute(connection, String.format(SOURCE_TABLE_STATEMENT, table));
+        execute(connection, "DELETE FROM " + SCHEMA + "." + PLAN_TABLE_NAME + " WHERE cadarch__type__c = '" +
+                table + "'");
+    }
+
+    /**
+     * Set up the archive table and triggers of the object through the archive service
+     */
+    static void setupArchive(ConfigurableApplicationContext context, ArchiveObject object) {
+        final ArchiveObjects objects = new ArchiveObjects();
+        objects.setObjects(Collections.singletonList(object));
+        context.getBean(ArchiveService.class).checkObjects(objects);
+    }
+
+    static ArchiveObject archiveObject(String table) {
+        final ArchiveObject object = new ArchiveObject();
+        object.setChildObj(table);
+        return object;
+    }
+
+    /**
+     * Insert rows into the source table and plan all of them for archiving. The n-th row gets
+     * {@link #sourceSfid(int)} and its plan row {@link #planSfid(int)}
+     */
+    static void insertPlannedRows(Connection connection, String table, int count) throws Exception {
+        execute(connection, String.format(INSERT_ROWS_STATEMENT, table, SOURCE_SFID_EXPRESSION, count));
+        execute(connection, String.format(INSERT_PLAN_STATEMENT, PLAN_SFID_EXPRESSION, table,
+                SOURCE_SFID_EXPRESSION, count));
+        execute(connection, "ANALYZE " + SCHEMA + "." + table + ", " + SCHEMA + "." + PLAN_TABLE_NAME);
+    }
+
+    /**
+     * Sfids generated for the n-th row of a source table, 18 characters like salesforce ids
+     */
+    static String sourceSfid(int n) {
+        return String.format("bch%015d", n);
+    }
+
+    static String planSfid(int n) {
+        return String.format("pln%015d", n);
+    }
+
+    static long count(Connection connection, String table) throws Exception {
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM " + SCHEMA + "." + table)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    static void execute(Connection connection, String sql) throws Exception {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * Run the step and report its duration and throughput
+     *
+     * @return duration in milliseconds
+     */
+    static long measure(String label, long rows, Step step) throws Exception {
+        final long started = System.nanoTime();
+        step.run();
+        final long millis = (System.nanoTime() - started) / 1000000;
+        System.out.printf("%-50s %10d rows %8d ms %12.0f rows/s%n", label, rows, millis,
+                millis > 0 ? rows * 1000.0 / millis : 0.0);
+        return millis;
+    }
+
+    static int[] parseSizes(String[] args, int index, int... defaults) {
+        if (args.length <= index) {
+            return defaults;
+        }
+        return Arrays.stream(args[index].split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    interface Step {
+
+        void run() throws Exception;
+    }
+}
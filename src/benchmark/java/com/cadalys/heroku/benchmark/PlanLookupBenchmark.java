@@ -0,0 +1,80 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.benchmark;
+
+import com.cadalys.heroku.stereotype.service.ArchiveService;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.sql.Connection;
+
+/**
+ * Per row cost of the archive trigger plan lookup as the plan table grows. The same number of planned rows is
+ * deleted every time, the plan table is padded with plan rows of other objects; with the plan index in place the
+ * cost per deleted row should stay flat
+ * <p/>
+ * Arguments: deleted rows, 10000 by default, and comma separated plan table padding, 0,1000000,5000000 by default
+ */
+public class PlanLookupBenchmark {
+
+    private static final String TABLE_NAME = "bench_plan_lookup";
+
+    private static final String FILLER_TYPE = "bench_plan_filler";
+
+    private static final String INSERT_FILLER_STATEMENT =
+            "INSERT INTO " + BenchmarkSupport.SCHEMA + "." + BenchmarkSupport.PLAN_TABLE_NAME +
+                    " (sfid, cadarch__plan_type__c, cadarch__type__c, cadarch__sourceid__c) SELECT 'flr' || " +
+                    "lpad(g::text, 15, '0'), 'Archive', '" + FILLER_TYPE + "', 'flr' || lpad(g::text, 15, '0') " +
+                    "FROM generate_series(%1$d, %2$d) g";
+
+    public static void main(String[] args) throws Exception {
+        final int rows = BenchmarkSupport.parseSizes(args, 0, 10000)[0];
+        final int[] paddings = BenchmarkSupport.parseSizes(args, 1, 0, 1000000, 5000000);
+        try (final ConfigurableApplicationContext context = BenchmarkSupport.start();
+             final Connection connection = BenchmarkSupport.connect(context)) {
+            BenchmarkSupport.createTables(connection, TABLE_NAME);
+            BenchmarkSupport.execute(connection, "DELETE FROM " + BenchmarkSupport.SCHEMA + "." +
+                    BenchmarkSupport.PLAN_TABLE_NAME + " WHERE cadarch__type__c = '" + FILLER_TYPE + "'");
+            int padded = 0;
+            for (int padding : paddings) {
+                if (padding > padded) {
+                    BenchmarkSupport.execute(connection, String.format(INSERT_FILLER_STATEMENT, padded + 1, padding));
+                    padded = padding;
+                }
+                BenchmarkSupport.createTables(connection, TABLE_NAME);
+                BenchmarkSupport.setupArchive(context, BenchmarkSupport.archiveObject(TABLE_NAME));
+                BenchmarkSupport.insertPlannedRows(connection, TABLE_NAME, rows);
+
+                final long millis = BenchmarkSupport.measure(String.format("delete, %d padding plan rows", padded),
+                        rows, () -> BenchmarkSupport.execute(connection,
+                                "DELETE FROM " + BenchmarkSupport.SCHEMA + "." + TABLE_NAME));
+                System.out.printf("%.1f us per row, archived %d rows%n", millis * 1000.0 / rows,
+                        BenchmarkSupport.count(connection, ArchiveService.ARCHIVE_TABLE_PREFIX + TABLE_NAME));
+            }
+            BenchmarkSupport.execute(connection, "DELETE FROM " + BenchmarkSupport.SCHEMA + "." +
+                    BenchmarkSupport.PLAN_TABLE_NAME + " WHERE cadarch__type__c = '" + FILLER_TYPE + "'");
+        }
+    }
+}
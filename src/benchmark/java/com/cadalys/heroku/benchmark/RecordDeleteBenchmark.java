@@ -0,0 +1,104 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.benchmark;
+
+import com.cadalys.heroku.record.RecordObject;
+import com.cadalys.heroku.record.RecordObjects;
+import com.cadalys.heroku.stereotype.service.RecordService;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Throughput of record deletes. The baseline deletes one sfid per statement and commits every row, like record
+ * deletes did before they were batched. {@link RecordService#deleteRecords(RecordObjects)} is then run at several
+ * chunk sizes, archiving through the row trigger and through the data-modifying statement
+ * <p/>
+ * Arguments: deleted records, 10000 by default, and comma separated chunk sizes, 100,1000,10000 by default
+ */
+public class RecordDeleteBenchmark {
+
+    private static final String TABLE_NAME = "bench_record_delete";
+
+    public static void main(String[] args) throws Exception {
+        final int rows = BenchmarkSupport.parseSizes(args, 0, 10000)[0];
+        final int[] chunkSizes = BenchmarkSupport.parseSizes(args, 1, 100, 1000, 10000);
+
+        try (final ConfigurableApplicationContext context = BenchmarkSupport.start();
+             final Connection connection = BenchmarkSupport.connect(context)) {
+            prepare(context, connection, rows);
+            connection.setAutoCommit(false);
+            BenchmarkSupport.measure("delete row by row, trigger archive", rows, () -> {
+                try (final PreparedStatement statement = connection.prepareStatement("DELETE FROM " +
+                        BenchmarkSupport.SCHEMA + "." + TABLE_NAME + " WHERE sfid = ?")) {
+                    for (int i = 1; i <= rows; i++) {
+                        statement.setString(1, BenchmarkSupport.sourceSfid(i));
+                        statement.executeUpdate();
+                        connection.commit();
+                    }
+                }
+            });
+        }
+
+        for (boolean statementArchive : new boolean[]{false, true}) {
+            for (int chunkSize : chunkSizes) {
+                try (final ConfigurableApplicationContext context = BenchmarkSupport.start(
+                        "archive.record.chunk-size=" + chunkSize,
+                        "archive.record.statement-archive=" + statementArchive);
+                     final Connection connection = BenchmarkSupport.connect(context)) {
+                    prepare(context, connection, rows);
+                    final RecordObjects objects = recordObjects(rows);
+                    BenchmarkSupport.measure(String.format("deleteRecords, chunk %d, %s archive", chunkSize,
+                            statementArchive ? "statement" : "trigger"), rows,
+                            () -> context.getBean(RecordService.class).deleteRecords(objects));
+                }
+            }
+        }
+    }
+
+    private static void prepare(ConfigurableApplicationContext context, Connection connection, int rows)
+            throws Exception {
+        BenchmarkSupport.createTables(connection, TABLE_NAME);
+        BenchmarkSupport.setupArchive(context, BenchmarkSupport.archiveObject(TABLE_NAME));
+        BenchmarkSupport.insertPlannedRows(connection, TABLE_NAME, rows);
+    }
+
+    private static RecordObjects recordObjects(int rows) {
+        final List<RecordObject> records = new ArrayList<>(rows);
+        for (int i = 1; i <= rows; i++) {
+            final RecordObject record = new RecordObject();
+            record.setObject(TABLE_NAME);
+            record.setId(BenchmarkSupport.sourceSfid(i));
+            records.add(record);
+        }
+        final RecordObjects objects = new RecordObjects();
+        objects.setObjects(records);
+        return objects;
+    }
+}
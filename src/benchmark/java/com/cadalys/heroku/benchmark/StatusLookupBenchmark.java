@@ -0,0 +1,82 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.benchmark;
+
+import com.cadalys.heroku.stereotype.service.ArchiveStatusService;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.util.Arrays;
+
+/**
+ * Archive status lookups of large id sets, materialized by
+ * {@link ArchiveStatusService#findByIds(String[])} and streamed by
+ * {@link ArchiveStatusService#writeByIds(String[], OutputStream)}. The status cache is disabled, so every run
+ * reaches the database
+ * <p/>
+ * Arguments: comma separated lookup sizes, 1000,50000,500000 by default, and runs of every size, 3 by default
+ */
+public class StatusLookupBenchmark {
+
+    private static final String TABLE_NAME = "bench_status_lookup";
+
+    public static void main(String[] args) throws Exception {
+        final int[] sizes = BenchmarkSupport.parseSizes(args, 0, 1000, 50000, 500000);
+        final int runs = BenchmarkSupport.parseSizes(args, 1, 3)[0];
+        final int planned = Arrays.stream(sizes).max().orElse(0);
+
+        try (final ConfigurableApplicationContext context = BenchmarkSupport.start(
+                "archive.status.cache.enabled=false");
+             final Connection connection = BenchmarkSupport.connect(context)) {
+            BenchmarkSupport.createTables(connection, TABLE_NAME);
+            BenchmarkSupport.insertPlannedRows(connection, TABLE_NAME, planned);
+            final ArchiveStatusService statusService = context.getBean(ArchiveStatusService.class);
+            final OutputStream discard = new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+
+            for (int size : sizes) {
+                final String[] identifiers = new String[size];
+                for (int i = 0; i < size; i++) {
+                    identifiers[i] = BenchmarkSupport.planSfid(i + 1);
+                }
+                for (int run = 1; run <= runs; run++) {
+                    BenchmarkSupport.measure(String.format("findByIds, run %d", run), size,
+                            () -> statusService.findByIds(identifiers));
+                    BenchmarkSupport.measure(String.format("writeByIds, run %d", run), size,
+                            () -> statusService.writeByIds(identifiers, discard));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.benchmark;
+
+import com.cadalys.heroku.archive.ArchiveObject;
+import com.cadalys.heroku.archive.TriggerMode;
+import com.cadalys.heroku.stereotype.service.ArchiveService;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.sql.Connection;
+
+/**
+ * Bulk delete of planned rows archived by the row trigger and by the statement trigger
+ * <p/>
+ * Arguments: comma separated delete sizes, 10000,100000,1000000 by default
+ */
+public class TriggerModeBenchmark {
+
+    private static final String TABLE_NAME = "bench_trigger_mode";
+
+    public static void main(String[] args) throws Exception {
+        final int[] sizes = BenchmarkSupport.parseSizes(args, 0, 10000, 100000, 1000000);
+        try (final ConfigurableApplicationContext context = BenchmarkSupport.start();
+             final Connection connection = BenchmarkSupport.connect(context)) {
+            for (int size : sizes) {
+                for (TriggerMode mode : TriggerMode.values()) {
+                    BenchmarkSupport.createTables(connection, TABLE_NAME);
+                    final ArchiveObject object = BenchmarkSupport.archiveObject(TABLE_NAME);
+                    object.setTriggerMode(mode);
+                    BenchmarkSupport.setupArchive(context, object);
+                    BenchmarkSupport.insertPlannedRows(connection, TABLE_NAME, size);
+
+                    BenchmarkSupport.measure(String.format("delete, %s trigger", mode), size,
+                            () -> BenchmarkSupport.execute(connection,
+                                    "DELETE FROM " + BenchmarkSupport.SCHEMA + "." + TABLE_NAME));
+                    System.out.printf("archived %d rows%n", BenchmarkSupport.count(connection,
+                            ArchiveService.ARCHIVE_TABLE_PREFIX + TABLE_NAME));
+                }
+            }
+        }
+    }
+}
@@ -30,6 +30,42 @@ public class ArchiveObject {
     private String parentObj;
     private String childObj;
     private String refField;
+    private TriggerMode triggerMode;
+    private ArchiveMode archiveMode;
+    private Boolean partitioned;
+    private String[] indexedColumns;
+
+    public String[] getIndexedColumns() {
+        return indexedColumns;
+    }
+
+    public void setIndexedColumns(String[] indexedColumns) {
+        this.indexedColumns = indexedColumns;
+    }
+
+    public Boolean getPartitioned() {
+        return partitioned;
+    }
+
+    public void setPartitioned(Boolean partitioned) {
+        this.partitioned = partitioned;
+    }
+
+    public ArchiveMode getArchiveMode() {
+        return archiveMode;
+    }
+
+    public void setArchiveMode(ArchiveMode archiveMode) {
+        this.archiveMode = archiveMode;
+    }
+
+    public TriggerMode getTriggerMode() {
+        return triggerMode;
+    }
+
+    public void setTriggerMode(TriggerMode triggerMode) {
+        this.triggerMode = triggerMode;
+    }
 
     public String getRefField() {
         return refField;
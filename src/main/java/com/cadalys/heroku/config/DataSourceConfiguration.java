@@ -39,6 +39,9 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.jdbc.datasource.DriverManagerDataSource;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
@@ -56,6 +59,7 @@ import java.net.URISyntaxException;
 @PropertySource("classpath:application.properties")
 @EnableWebMvc
 @EnableAsync
+@EnableScheduling
 public class DataSourceConfiguration extends WebMvcConfigurerAdapter {
 
     public static final String SCHEMA_NAME = "salesforce";
@@ -80,6 +84,19 @@ public class DataSourceConfiguration extends WebMvcConfigurerAdapter {
         registry.addMapping("/**");
     }
 
+    /**
+     * Sets timeout of async requests. Streamed deletes and reads run as long as the client keeps sending or
+     * reading, so by default they have no timeout instead of the container one
+     * <p/>
+     * Note: spring.mvc.* properties don't apply, web mvc is configured here rather than by boot
+     *
+     * @param configurer
+     */
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setDefaultTimeout(env.getProperty("archive.async.timeout", Long.class, -1L));
+    }
+
     /**
      * Initializing  datasource using application properties
      *
@@ -147,4 +164,18 @@ public class DataSourceConfiguration extends WebMvcConfigurerAdapter {
         return new GsonBuilder().create();
     }
 
+    /**
+     * Scheduler of background archive maintenance. Purges and tiering run for minutes, so they get threads of
+     * their own instead of holding up the archive queue drain on the default single thread
+     *
+     * @return
+     */
+    @Bean
+    public ThreadPoolTaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(env.getProperty("archive.scheduler.pool-size", Integer.class, 4));
+        scheduler.setThreadNamePrefix("archive-scheduler-");
+        return scheduler;
+    }
+
 }
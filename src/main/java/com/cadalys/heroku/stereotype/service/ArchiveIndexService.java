@@ -0,0 +1,122 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.utils.DBUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.List;
+
+/**
+ * Generates indexes of archive tables. Every index covers a single column, existing indexes are left as they are.
+ * Indexes of plain archive tables are built concurrently by {@link OnlineDdlService}. A partitioned archive
+ * table gets its index on the parent only, which is then built concurrently on every partition and attached,
+ * partitions created later inherit it.
+ */
+@Service
+public class ArchiveIndexService {
+
+    private static final int MAX_IDENTIFIER_LENGTH = 63;
+
+    private static final String INDEX_SUFFIX = "_idx";
+
+    private static final String INDEX_EXISTS_STATEMENT = "select to_regclass(?) is not null";
+
+    @Autowired
+    private ArchivePartitionService archivePartitionService;
+
+    /**
+     * Generate sql script to create missing indexes of specified columns of the archive table
+     *
+     * @param connection
+     * @param archiveTableName
+     * @param columns          indexed columns
+     * @param created          whether the archive table is created by the same setup, so it is still empty
+     * @param partitioned      whether the archive table is partitioned
+     * @return sql script, empty when all indexes exist
+     * @throws Exception
+     */
+    public String getCreateIndexesSql(Connection connection, String archiveTableName, List<String> columns,
+            boolean created, boolean partitioned) throws Exception {
+        final StringBuilder sqlBuilder = new StringBuilder();
+        for (String column : columns) {
+            final String indexName = getIndexName(archiveTableName, column);
+            if (!created && indexExists(connection, indexName)) {
+                continue;
+            }
+            if (created || !partitioned) {
+                // an index of the empty table being created is built right away and cascades to its partitions
+                sqlBuilder.append(getCreateIndexSql(indexName, "", archiveTableName, column));
+                continue;
+            }
+            sqlBuilder.append(getCreateIndexSql(indexName, "ONLY ", archiveTableName, column));
+            for (String partition : archivePartitionService.findPartitions(connection, archiveTableName)) {
+                final String partitionIndexName = getIndexName(partition, column);
+                sqlBuilder.append(getCreateIndexSql(partitionIndexName, "", partition, column));
+                sqlBuilder.append(String.format("ALTER INDEX %1$s.%2$s ATTACH PARTITION %1$s.%3$s;\n",
+                        DataSourceConfiguration.SCHEMA_NAME, indexName, partitionIndexName));
+            }
+        }
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * Name of the single column index, shortened with a hash when it doesn't fit the identifier length
+     *
+     * @param tableName
+     * @param column
+     * @return
+     */
+    public String getIndexName(String tableName, String column) {
+        final String name = (tableName + "_" + column + INDEX_SUFFIX).toLowerCase();
+        if (name.length() <= MAX_IDENTIFIER_LENGTH) {
+            return name;
+        }
+        final String hash = String.format("%08x", name.hashCode());
+        return name.substring(0, MAX_IDENTIFIER_LENGTH - hash.length() - INDEX_SUFFIX.length() - 1) + "_" + hash +
+                INDEX_SUFFIX;
+    }
+
+    private String getCreateIndexSql(String indexName, String only, String tableName, String column) {
+        return String.format("CREATE INDEX IF NOT EXISTS %2$s ON %3$s%1$s.%4$s (%5$s);\n",
+                DataSourceConfiguration.SCHEMA_NAME, indexName, only, tableName,
+                DBUtils.quoteIdentifier(column.toLowerCase()));
+    }
+
+    private boolean indexExists(Connection connection, String indexName) throws Exception {
+        try (final PreparedStatement statement = connection.prepareStatement(INDEX_EXISTS_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + indexName);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+}
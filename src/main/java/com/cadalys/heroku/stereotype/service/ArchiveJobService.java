@@ -0,0 +1,176 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.archive.ArchiveJob;
+import com.cadalys.heroku.archive.ArchiveObjects;
+import com.cadalys.heroku.archive.ArchiveTableNames;
+import com.cadalys.heroku.exception.ArchiveException;
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs archive setup and trigger removal as background jobs on a bounded executor. A submission identical to a job
+ * which is still queued or running gets that job instead of a new one. Finished jobs are kept for status requests
+ * for the configured retention.
+ */
+@Service
+public class ArchiveJobService {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<String, ArchiveJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Jobs which are queued or running, keyed by their request
+     */
+    private final Map<String, ArchiveJob> activeJobs = new ConcurrentHashMap<>();
+
+    @Autowired
+    private ArchiveService archiveService;
+
+    @Autowired
+    private Gson gson;
+
+    @Value("${archive.job.workers:2}")
+    private int workers;
+
+    @Value("${archive.job.queue-size:20}")
+    private int queueSize;
+
+    @Value("${archive.job.retention:3600000}")
+    private long retention;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    public void init() {
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Submit archive setup of specified objects
+     *
+     * @param objects
+     * @return submitted or coalesced job
+     */
+    public ArchiveJob submitSetup(ArchiveObjects objects) {
+        return submit(ArchiveJob.Type.SETUP, gson.toJson(objects), objects.getObjects().size(),
+                job -> archiveService.checkObjects(objects, result -> job.getObjects().add(result)));
+    }
+
+    /**
+     * Submit trigger removal of specified objects
+     *
+     * @param objects
+     * @return submitted or coalesced job
+     */
+    public ArchiveJob submitDeleteTriggers(ArchiveTableNames objects) {
+        return submit(ArchiveJob.Type.DELETE_TRIGGERS, gson.toJson(objects), objects.getObjects().length,
+                job -> archiveService.deleteObjectsTrigger(objects, result -> job.getObjects().add(result)));
+    }
+
+    /**
+     * Get the job by its identifier
+     *
+     * @param id
+     * @return
+     */
+    public ArchiveJob getJob(String id) {
+        final ArchiveJob job = jobs.get(id);
+        if (job == null) {
+            throw new ArchiveException(Collections.singletonList(String.format("archive job %s doesn't exists", id)));
+        }
+        return job;
+    }
+
+    private synchronized ArchiveJob submit(ArchiveJob.Type type, String request, int total, Consumer<ArchiveJob> task) {
+        removeExpiredJobs();
+        final String key = type + ":" + request;
+        final ArchiveJob activeJob = activeJobs.get(key);
+        if (activeJob != null) {
+            return activeJob;
+        }
+
+        final ArchiveJob job = new ArchiveJob(UUID.randomUUID().toString(), type, total);
+        jobs.put(job.getId(), job);
+        activeJobs.put(key, job);
+        try {
+            executor.execute(() -> run(key, job, task));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            activeJobs.remove(key);
+            throw new ArchiveException(Collections.singletonList("too many archive jobs are queued, try again later"));
+        }
+        return job;
+    }
+
+    private void run(String key, ArchiveJob job, Consumer<ArchiveJob> task) {
+        job.setStartedAt(System.currentTimeMillis());
+        job.setStatus(ArchiveJob.Status.RUNNING);
+        ArchiveJob.Status status = ArchiveJob.Status.FAILED;
+        try {
+            task.accept(job);
+            status = ArchiveJob.Status.DONE;
+        } catch (ArchiveException e) {
+            job.setErrors(e.getErrors());
+        } catch (Exception e) {
+            logger.error("Error running archive job " + job.getId(), e);
+            job.setErrors(Collections.singletonList(e.getMessage()));
+        } finally {
+            job.setFinishedAt(System.currentTimeMillis());
+            job.setStatus(status);
+            activeJobs.remove(key, job);
+        }
+    }
+
+    private void removeExpiredJobs() {
+        final long expiredBefore = System.currentTimeMillis() - retention;
+        jobs.values().removeIf(e -> e.isFinished() && e.getFinishedAt() < expiredBefore);
+    }
+}
@@ -0,0 +1,406 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.utils.DBUtils;
+import org.apache.ddlutils.model.Column;
+import org.apache.ddlutils.model.Table;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Creates archive tables range partitioned by month of {@link ArchiveService#ARCHIVED_DATE_COLUMN}, keeps
+ * partitions created ahead of time and drops partitions which are out of retention period.
+ * <p/>
+ * Partitioned parents are not visible to ddlutils, so their columns are evolved with plain ALTER TABLE statements
+ * built from the catalog.
+ * <p/>
+ * Unique keys of partitioned tables must contain the partition key, so archived rows are unique by
+ * (sfid, archiveddate). ON CONFLICT DO NOTHING only drops rows archived again with the same archiveddate, like
+ * queue batches which are drained again, a row archived twice at different times is kept twice.
+ */
+@Service
+public class ArchivePartitionService {
+
+    private static final DateTimeFormatter PARTITION_SUFFIX_FORMAT = DateTimeFormatter.ofPattern("yyyyMM");
+
+    private static final Pattern PARTITION_NAME_PATTERN = Pattern.compile(".*_p(\\d{6})$");
+
+    private static final String PARTITION_SUFFIX = "_p";
+
+    private static final String DEFAULT_PARTITION_SUFFIX = "_pdefault";
+
+    private static final String IS_PARTITIONED_STATEMENT =
+            "select exists(select 1 from pg_partitioned_table p join pg_class c on c.oid = p.partrelid " +
+                    "join pg_namespace n on n.oid = c.relnamespace where n.nspname = '" +
+                    DataSourceConfiguration.SCHEMA_NAME + "' and c.relname = ?)";
+
+    private static final String PARTITIONED_ARCHIVE_TABLES_STATEMENT =
+            "select c.relname from pg_partitioned_table p join pg_class c on c.oid = p.partrelid " +
+                    "join pg_namespace n on n.oid = c.relnamespace where n.nspname = '" +
+                    DataSourceConfiguration.SCHEMA_NAME + "' and c.relname like '" +
+                    ArchiveService.ARCHIVE_TABLE_PREFIX.replace("_", "\\_") + "%'";
+
+    private static final String PARTITIONS_STATEMENT =
+            "select c.relname from pg_inherits i join pg_class c on c.oid = i.inhrelid " +
+                    "where i.inhparent = ?::regclass";
+
+    private static final String DEFAULT_PARTITION_ROWS_STATEMENT =
+            "select exists(select 1 from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s where " +
+                    ArchiveService.ARCHIVED_DATE_COLUMN + " >= ? and " + ArchiveService.ARCHIVED_DATE_COLUMN + " < ?)";
+
+    private static final String MISSING_COLUMNS_STATEMENT =
+            "select a.attname, format_type(a.atttypid, a.atttypmod) from pg_attribute a " +
+                    "where a.attrelid = ?::regclass and a.attnum > 0 and not a.attisdropped " +
+                    "and a.attname not in (select b.attname from pg_attribute b " +
+                    "where b.attrelid = ?::regclass and b.attnum > 0 and not b.attisdropped) order by a.attnum";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${archive.partition.premake-months:3}")
+    private int premakeMonths;
+
+    @Value("${archive.partition.retention-months:0}")
+    private int retentionMonths;
+
+    /**
+     * Check whether specified table is a partitioned table
+     *
+     * @param connection
+     * @param tableName
+     * @return
+     * @throws Exception
+     */
+    public boolean isPartitioned(Connection connection, String tableName) throws Exception {
+        try (final PreparedStatement statement = connection.prepareStatement(IS_PARTITIONED_STATEMENT)) {
+            statement.setString(1, tableName);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    /**
+     * Generate sql script to create partitioned archive table for the specified source table together with
+     * partitions for the current and upcoming months
+     *
+     * @param originalTable  source table model
+     * @param parentExtIdColumns ParentExtID columns the archive table should have
+     * @return sql script
+     */
+    public String getCreateTableSql(Table originalTable, List<String> parentExtIdColumns) {
+        final String table = originalTable.getName();
+        final String archiveTable = qualifiedArchiveTable(table);
+        final StringBuilder sqlBuilder = new StringBuilder();
+        sqlBuilder.append("CREATE TABLE ").append(archiveTable).append(" (LIKE ")
+                .append(DataSourceConfiguration.SCHEMA_NAME).append(".").append(table);
+        for (String parentExtIdColumn : parentExtIdColumns) {
+            sqlBuilder.append(", ").append(parentExtIdColumn).append(" varchar(18)");
+        }
+        sqlBuilder.append(", ").append(ArchiveService.ARCHIVED_DATE_COLUMN)
+                .append(" timestamp NOT NULL DEFAULT now(), UNIQUE (sfid, ").append(ArchiveService.ARCHIVED_DATE_COLUMN)
+                .append(")) PARTITION BY RANGE (")
+                .append(ArchiveService.ARCHIVED_DATE_COLUMN).append(");\n");
+
+        for (Column column : originalTable.getColumns()) {
+            if (column.isRequired()) {
+                sqlBuilder.append("ALTER TABLE ").append(archiveTable).append(" ALTER COLUMN ")
+                        .append(DBUtils.quoteIdentifier(column.getName())).append(" DROP NOT NULL;\n");
+            }
+        }
+        sqlBuilder.append("CREATE TABLE ").append(archiveTable).append(DEFAULT_PARTITION_SUFFIX)
+                .append(" PARTITION OF ").append(archiveTable).append(" DEFAULT;\n");
+        sqlBuilder.append(getCreatePartitionsSql(ArchiveService.ARCHIVE_TABLE_PREFIX + table));
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * Generate sql script adding columns that exist in the source table but are missing in the partitioned
+     * archive table. Columns are added to the parent and propagated to all partitions
+     *
+     * @param connection
+     * @param table              source table name
+     * @param parentExtIdColumns ParentExtID columns the archive table should have
+     * @return sql script
+     * @throws Exception
+     */
+    public String getAddMissingColumnsSql(Connection connection, String table, List<String> parentExtIdColumns)
+            throws Exception {
+        final String archiveTable = qualifiedArchiveTable(table);
+        final StringBuilder sqlBuilder = new StringBuilder();
+        try (final PreparedStatement statement = connection.prepareStatement(MISSING_COLUMNS_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + table);
+            statement.setString(2, archiveTable);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    sqlBuilder.append("ALTER TABLE ").append(archiveTable).append(" ADD COLUMN ")
+                            .append(DBUtils.quoteIdentifier(resultSet.getString(1))).append(" ")
+                            .append(resultSet.getString(2)).append(";\n");
+                }
+            }
+        }
+        if (sqlBuilder.length() > 0) {
+            logger.info("adding new columns to partitioned {}, archive procedure will be regenerated", archiveTable);
+        }
+        for (String parentExtIdColumn : parentExtIdColumns) {
+            sqlBuilder.append("ALTER TABLE ").append(archiveTable).append(" ADD COLUMN IF NOT EXISTS ")
+                    .append(parentExtIdColumn).append(" varchar(18);\n");
+        }
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * Generate sql script to create partitions of the archive table for the current month and the configured
+     * number of upcoming months
+     *
+     * @param archiveTableName
+     * @return sql script
+     */
+    public String getCreatePartitionsSql(String archiveTableName) {
+        final StringBuilder sqlBuilder = new StringBuilder();
+        for (YearMonth month : getPremadeMonths()) {
+            sqlBuilder.append(getCreatePartitionSql(archiveTableName, month));
+        }
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * Generate sql script to create missing partitions of the existing archive table for the current month and
+     * the configured number of upcoming months. A range partition can't be created while the default partition
+     * holds rows of its range, such rows are moved to the new partition while the default partition is detached
+     *
+     * @param connection
+     * @param archiveTableName
+     * @return sql script, empty when all partitions exist
+     * @throws Exception
+     */
+    public String getCreateMissingPartitionsSql(Connection connection, String archiveTableName) throws Exception {
+        final List<String> partitions = findPartitions(connection, archiveTableName);
+        final String defaultPartition = archiveTableName + DEFAULT_PARTITION_SUFFIX;
+        final StringBuilder sqlBuilder = new StringBuilder();
+        for (YearMonth month : getPremadeMonths()) {
+            final String partition = archiveTableName + PARTITION_SUFFIX + month.format(PARTITION_SUFFIX_FORMAT);
+            if (partitions.contains(partition)) {
+                continue;
+            }
+            if (!partitions.contains(defaultPartition) || !hasRows(connection, defaultPartition, month)) {
+                sqlBuilder.append(getCreatePartitionSql(archiveTableName, month));
+                continue;
+            }
+            logger.info("moving rows of {} from {} to the new partition", month, defaultPartition);
+            sqlBuilder.append(String.format("ALTER TABLE %1$s.%2$s DETACH PARTITION %1$s.%3$s;\n",
+                    DataSourceConfiguration.SCHEMA_NAME, archiveTableName, defaultPartition));
+            sqlBuilder.append(getCreatePartitionSql(archiveTableName, month));
+            sqlBuilder.append(String.format("INSERT INTO %1$s.%2$s SELECT * FROM %1$s.%3$s WHERE %4$s >= '%5$s' " +
+                            "AND %4$s < '%6$s';\nDELETE FROM %1$s.%3$s WHERE %4$s >= '%5$s' AND %4$s < '%6$s';\n",
+                    DataSourceConfiguration.SCHEMA_NAME, partition, defaultPartition,
+                    ArchiveService.ARCHIVED_DATE_COLUMN, month.atDay(1), month.plusMonths(1).atDay(1)));
+            sqlBuilder.append(String.format("ALTER TABLE %1$s.%2$s ATTACH PARTITION %1$s.%3$s DEFAULT;\n",
+                    DataSourceConfiguration.SCHEMA_NAME, archiveTableName, defaultPartition));
+        }
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * Creates upcoming partitions of every partitioned archive table and drops partitions which are older than
+     * the configured retention period. Creates and drops run in separate transactions, so a failing drop
+     * doesn't prevent upcoming partitions from being created
+     */
+    @Scheduled(cron = "${archive.partition.cron:0 0 1 * * *}")
+    public void maintainPartitions() {
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            for (String archiveTableName : findPartitionedArchiveTables(connection)) {
+                try {
+                    execute(connection, getCreateMissingPartitionsSql(connection, archiveTableName));
+                } catch (Exception e) {
+                    connection.rollback();
+                    logger.error(String.format("Error creating partitions of %s", archiveTableName), e);
+                }
+                try {
+                    execute(connection, getDropExpiredPartitionsSql(connection, archiveTableName));
+                } catch (Exception e) {
+                    connection.rollback();
+                    logger.error(String.format("Error dropping partitions of %s", archiveTableName), e);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error maintaining archive partitions", e);
+        }
+    }
+
+    /**
+     * Generate sql script to detach and drop partitions of the archive table which are entirely out of
+     * the retention period
+     *
+     * @param connection
+     * @param archiveTableName
+     * @return sql script, empty when retention is disabled
+     * @throws Exception
+     */
+    public String getDropExpiredPartitionsSql(Connection connection, String archiveTableName) throws Exception {
+        if (retentionMonths <= 0) {
+            return "";
+        }
+        return getDropExpiredPartitionsSql(connection, archiveTableName, YearMonth.now().minusMonths(retentionMonths));
+    }
+
+    /**
+     * Generate sql script to detach and drop partitions of the archive table for months before the specified one
+     *
+     * @param connection
+     * @param archiveTableName
+     * @param oldestKeptMonth
+     * @return sql script, empty when there is nothing to drop
+     * @throws Exception
+     */
+    public String getDropExpiredPartitionsSql(Connection connection, String archiveTableName,
+            YearMonth oldestKeptMonth) throws Exception {
+        final StringBuilder sqlBuilder = new StringBuilder();
+        for (String partition : findPartitions(connection, archiveTableName)) {
+            final YearMonth partitionMonth = getPartitionMonth(partition);
+            if (partitionMonth != null && partitionMonth.isBefore(oldestKeptMonth)) {
+                sqlBuilder.append(String.format("ALTER TABLE %1$s.%2$s DETACH PARTITION %1$s.%3$s;\n" +
+                                "DROP TABLE %1$s.%3$s;\n", DataSourceConfiguration.SCHEMA_NAME, archiveTableName,
+                        partition));
+            }
+        }
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * Find partitions of the specified archive table
+     *
+     * @param connection
+     * @param archiveTableName
+     * @return
+     * @throws Exception
+     */
+    public List<String> findPartitions(Connection connection, String archiveTableName) throws Exception {
+        final List<String> partitions = new ArrayList<>();
+        try (final PreparedStatement statement = connection.prepareStatement(PARTITIONS_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + archiveTableName);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    partitions.add(resultSet.getString(1));
+                }
+            }
+        }
+        return partitions;
+    }
+
+    /**
+     * Get month covered by the partition, based on the partition name
+     *
+     * @param partition partition name
+     * @return month or null for the default partition
+     */
+    public YearMonth getPartitionMonth(String partition) {
+        final Matcher matcher = PARTITION_NAME_PATTERN.matcher(partition);
+        return matcher.matches() ? YearMonth.parse(matcher.group(1), PARTITION_SUFFIX_FORMAT) : null;
+    }
+
+    /**
+     * Find all partitioned archive tables
+     *
+     * @param connection
+     * @return
+     * @throws Exception
+     */
+    public List<String> findPartitionedArchiveTables(Connection connection) throws Exception {
+        final List<String> tables = new ArrayList<>();
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(PARTITIONED_ARCHIVE_TABLES_STATEMENT)) {
+            while (resultSet.next()) {
+                tables.add(resultSet.getString(1));
+            }
+        }
+        connection.commit();
+        return tables;
+    }
+
+    private void execute(Connection connection, String sql) throws Exception {
+        if (!sql.isEmpty()) {
+            logger.info(sql);
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute(sql);
+            }
+        }
+        connection.commit();
+    }
+
+    private boolean hasRows(Connection connection, String partition, YearMonth month) throws Exception {
+        try (final PreparedStatement statement = connection.prepareStatement(
+                String.format(DEFAULT_PARTITION_ROWS_STATEMENT, partition))) {
+            statement.setTimestamp(1, Timestamp.valueOf(month.atDay(1).atStartOfDay()));
+            statement.setTimestamp(2, Timestamp.valueOf(month.plusMonths(1).atDay(1).atStartOfDay()));
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private List<YearMonth> getPremadeMonths() {
+        final List<YearMonth> months = new ArrayList<>();
+        final YearMonth currentMonth = YearMonth.now();
+        for (int i = 0; i <= premakeMonths; i++) {
+            months.add(currentMonth.plusMonths(i));
+        }
+        return months;
+    }
+
+    private String getCreatePartitionSql(String archiveTableName, YearMonth month) {
+        return String.format("CREATE TABLE IF NOT EXISTS %1$s.%2$s%3$s%4$s PARTITION OF %1$s.%2$s " +
+                        "FOR VALUES FROM ('%5$s') TO ('%6$s');\n", DataSourceConfiguration.SCHEMA_NAME,
+                archiveTableName, PARTITION_SUFFIX, month.format(PARTITION_SUFFIX_FORMAT), month.atDay(1),
+                month.plusMonths(1).atDay(1));
+    }
+
+    private String qualifiedArchiveTable(String table) {
+        return DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveService.ARCHIVE_TABLE_PREFIX + table;
+    }
+}
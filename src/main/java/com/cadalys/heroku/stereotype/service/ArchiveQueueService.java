@@ -0,0 +1,307 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves rows queued by archive triggers in {@link com.cadalys.heroku.archive.ArchiveMode#QUEUE} mode into the
+ * archive tables. Every batch is removed from the queue and inserted into the archive table by a single statement.
+ * <p/>
+ * A failed batch is drained again row by row, rows which still fail are parked in the dead letter table together
+ * with the error, so a single bad row doesn't block the queue of its object.
+ */
+@Service
+public class ArchiveQueueService {
+
+    public static final String QUEUE_TABLE_NAME = "cadarch__archive_queue";
+
+    public static final String DEAD_LETTER_TABLE_NAME = "cadarch__archive_queue_dead";
+
+    private static final String QUEUE_EXISTS_STATEMENT =
+            "select to_regclass('" + DataSourceConfiguration.SCHEMA_NAME + "." + QUEUE_TABLE_NAME + "') is not null";
+
+    private static final String QUEUED_OBJECTS_STATEMENT =
+            "select object_name from " + DataSourceConfiguration.SCHEMA_NAME + "." + QUEUE_TABLE_NAME +
+                    " group by object_name";
+
+    private static final String QUEUE_STATUS_STATEMENT =
+            "select object_name, count(*) as queued, extract(epoch from now() - min(queued_at)) as lag from " +
+                    DataSourceConfiguration.SCHEMA_NAME + "." + QUEUE_TABLE_NAME + " group by object_name";
+
+    private static final String INSERT_BATCH_STATEMENT =
+            " insert into " + DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveService.ARCHIVE_TABLE_PREFIX +
+                    "%1$s select r.* from batch, jsonb_populate_record(null::" +
+                    DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveService.ARCHIVE_TABLE_PREFIX +
+                    "%1$s, batch.row_data || jsonb_build_object('" + ArchiveService.ARCHIVED_DATE_COLUMN +
+                    "', batch.queued_at)) r on conflict do nothing";
+
+    private static final String DRAIN_BATCH_STATEMENT =
+            "with batch as (delete from " + DataSourceConfiguration.SCHEMA_NAME + "." + QUEUE_TABLE_NAME +
+                    " where id in (select id from " + DataSourceConfiguration.SCHEMA_NAME + "." + QUEUE_TABLE_NAME +
+                    " where object_name = ? order by id limit ? for update skip locked) returning row_data, queued_at)" +
+                    INSERT_BATCH_STATEMENT;
+
+    private static final String DRAIN_ROW_STATEMENT =
+            "with batch as (delete from " + DataSourceConfiguration.SCHEMA_NAME + "." + QUEUE_TABLE_NAME +
+                    " where id = ? returning row_data, queued_at)" + INSERT_BATCH_STATEMENT;
+
+    private static final String LOCK_BATCH_STATEMENT =
+            "select id from " + DataSourceConfiguration.SCHEMA_NAME + "." + QUEUE_TABLE_NAME +
+                    " where object_name = ? order by id limit ? for update skip locked";
+
+    private static final String DEAD_LETTER_TABLE_STATEMENT =
+            "CREATE TABLE IF NOT EXISTS " + DataSourceConfiguration.SCHEMA_NAME + "." + DEAD_LETTER_TABLE_NAME + " (" +
+                    "id bigint PRIMARY KEY, object_name varchar(255) NOT NULL, row_data jsonb NOT NULL, " +
+                    "queued_at timestamptz NOT NULL, error text, parked_at timestamptz NOT NULL DEFAULT now())";
+
+    private static final String PARK_ROW_STATEMENT =
+            "with parked as (delete from " + DataSourceConfiguration.SCHEMA_NAME + "." + QUEUE_TABLE_NAME +
+                    " where id = ? returning id, object_name, row_data, queued_at) insert into " +
+                    DataSourceConfiguration.SCHEMA_NAME + "." + DEAD_LETTER_TABLE_NAME +
+                    " (id, object_name, row_data, queued_at, error) select id, object_name, row_data, queued_at, ? " +
+                    "from parked";
+
+    private static final String DEAD_LETTER_EXISTS_STATEMENT =
+            "select to_regclass('" + DataSourceConfiguration.SCHEMA_NAME + "." + DEAD_LETTER_TABLE_NAME +
+                    "') is not null";
+
+    private static final String DEAD_LETTER_STATUS_STATEMENT =
+            "select object_name, count(*) as parked from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    DEAD_LETTER_TABLE_NAME + " group by object_name";
+
+    private static final String DATA_EXCEPTION_CLASS = "22";
+
+    private static final String INTEGRITY_CONSTRAINT_VIOLATION_CLASS = "23";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final AtomicLong drainedRows = new AtomicLong();
+
+    private final AtomicLong failedBatches = new AtomicLong();
+
+    private final AtomicLong parkedRows = new AtomicLong();
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${archive.queue.batch-size:5000}")
+    private int batchSize;
+
+    /**
+     * Drains the archive queue, object by object, in batches of configured size
+     */
+    @Scheduled(fixedDelayString = "${archive.queue.drain-delay:5000}")
+    public void drain() {
+        try (final Connection connection = dataSource.getConnection()) {
+            if (!queueExists(connection)) {
+                return;
+            }
+            connection.setAutoCommit(false);
+            for (String objectName : findQueuedObjects(connection)) {
+                drainObject(connection, objectName);
+            }
+        } catch (Exception e) {
+            logger.error("Error draining archive queue", e);
+        }
+    }
+
+    /**
+     * Reports queue depth, lag in seconds of the oldest queued row and number of rows parked in the dead letter
+     * table per object
+     *
+     * @return
+     */
+    public Map<String, Object> getQueueStatus() {
+        final Map<String, Object> status = new HashMap<>();
+        final Map<String, Map<String, Object>> objects = new TreeMap<>();
+        long stuckRows = 0;
+        try (final Connection connection = dataSource.getConnection()) {
+            if (queueExists(connection)) {
+                try (final Statement statement = connection.createStatement();
+                     final ResultSet resultSet = statement.executeQuery(QUEUE_STATUS_STATEMENT)) {
+                    while (resultSet.next()) {
+                        final Map<String, Object> object = getObjectStatus(objects, resultSet.getString("object_name"));
+                        object.put("queued", resultSet.getLong("queued"));
+                        object.put("lagSeconds", resultSet.getDouble("lag"));
+                    }
+                }
+            }
+            if (exists(connection, DEAD_LETTER_EXISTS_STATEMENT)) {
+                try (final Statement statement = connection.createStatement();
+                     final ResultSet resultSet = statement.executeQuery(DEAD_LETTER_STATUS_STATEMENT)) {
+                    while (resultSet.next()) {
+                        final long parked = resultSet.getLong("parked");
+                        getObjectStatus(objects, resultSet.getString("object_name")).put("stuck", parked);
+                        stuckRows += parked;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error reading archive queue status", e);
+            status.put("error", e.getMessage());
+        }
+        status.put("objects", new ArrayList<>(objects.values()));
+        status.put("drainedRows", drainedRows.get());
+        status.put("failedBatches", failedBatches.get());
+        status.put("parkedRows", parkedRows.get());
+        status.put("stuckRows", stuckRows);
+        return status;
+    }
+
+    private void drainObject(Connection connection, String objectName) throws Exception {
+        int drained;
+        do {
+            try (final PreparedStatement statement = connection.prepareStatement(
+                    String.format(DRAIN_BATCH_STATEMENT, objectName))) {
+                statement.setString(1, objectName);
+                statement.setInt(2, batchSize);
+                drained = statement.executeUpdate();
+                connection.commit();
+                drainedRows.addAndGet(drained);
+            } catch (Exception e) {
+                connection.rollback();
+                failedBatches.incrementAndGet();
+                logger.error(String.format("Error moving queued rows of %s to archive table, draining the batch " +
+                        "row by row", objectName), e);
+                try {
+                    drained = drainRows(connection, objectName);
+                } catch (Exception re) {
+                    connection.rollback();
+                    logger.error(String.format("Error moving queued rows of %s to archive table", objectName), re);
+                    return;
+                }
+            }
+        } while (drained >= batchSize);
+    }
+
+    /**
+     * Drain a batch row by row, rows which fail with a data error are moved to the dead letter table. Other
+     * errors don't depend on the row and stop draining of the object until the next run
+     *
+     * @return number of rows removed from the queue
+     */
+    private int drainRows(Connection connection, String objectName) throws Exception {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute(DEAD_LETTER_TABLE_STATEMENT);
+        }
+        connection.commit();
+
+        final List<Long> ids = new ArrayList<>();
+        // counters are updated once the batch is committed, a failed batch is rolled back and counts nothing
+        long drained = 0;
+        long parked = 0;
+        try (final PreparedStatement statement = connection.prepareStatement(LOCK_BATCH_STATEMENT)) {
+            statement.setString(1, objectName);
+            statement.setInt(2, batchSize);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    ids.add(resultSet.getLong(1));
+                }
+            }
+        }
+        for (Long id : ids) {
+            final Savepoint savepoint = connection.setSavepoint();
+            try (final PreparedStatement statement = connection.prepareStatement(
+                    String.format(DRAIN_ROW_STATEMENT, objectName))) {
+                statement.setLong(1, id);
+                drained += statement.executeUpdate();
+                connection.releaseSavepoint(savepoint);
+            } catch (SQLException e) {
+                if (e.getSQLState() == null || !e.getSQLState().startsWith(DATA_EXCEPTION_CLASS) &&
+                        !e.getSQLState().startsWith(INTEGRITY_CONSTRAINT_VIOLATION_CLASS)) {
+                    throw e;
+                }
+                connection.rollback(savepoint);
+                logger.warn("queued row {} of {} parked in {}: {}", id, objectName, DEAD_LETTER_TABLE_NAME,
+                        e.getMessage());
+                try (final PreparedStatement statement = connection.prepareStatement(PARK_ROW_STATEMENT)) {
+                    statement.setLong(1, id);
+                    statement.setString(2, e.getMessage());
+                    statement.executeUpdate();
+                }
+                parked++;
+            }
+        }
+        connection.commit();
+        drainedRows.addAndGet(drained);
+        parkedRows.addAndGet(parked);
+        return ids.size();
+    }
+
+    private Map<String, Object> getObjectStatus(Map<String, Map<String, Object>> objects, String objectName) {
+        return objects.computeIfAbsent(objectName, e -> {
+            final Map<String, Object> object = new HashMap<>();
+            object.put("object", objectName);
+            object.put("queued", 0L);
+            object.put("stuck", 0L);
+            return object;
+        });
+    }
+
+    private List<String> findQueuedObjects(Connection connection) throws Exception {
+        final List<String> objects = new ArrayList<>();
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(QUEUED_OBJECTS_STATEMENT)) {
+            while (resultSet.next()) {
+                objects.add(resultSet.getString(1));
+            }
+        }
+        connection.commit();
+        return objects;
+    }
+
+    private boolean queueExists(Connection connection) throws Exception {
+        return exists(connection, QUEUE_EXISTS_STATEMENT);
+    }
+
+    private boolean exists(Connection connection, String existsStatement) throws Exception {
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(existsStatement)) {
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+    }
+}
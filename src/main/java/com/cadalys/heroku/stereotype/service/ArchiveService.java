@@ -29,22 +29,40 @@ import com.cadalys.heroku.config.DataSourceConfiguration;
 import com.cadalys.heroku.exception.ArchiveException;
 import com.cadalys.heroku.archive.ArchiveTableNames;
 import com.cadalys.heroku.archive.ArchiveObjects;
+import com.cadalys.heroku.archive.ArchiveMode;
 import com.cadalys.heroku.archive.ArchiveObject;
+import com.cadalys.heroku.archive.ArchiveObjectResult;
+import com.cadalys.heroku.archive.TriggerMode;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.Equator;
 import org.apache.ddlutils.Platform;
 import org.apache.ddlutils.PlatformFactory;
 import org.apache.ddlutils.PlatformInfo;
 import org.apache.ddlutils.model.*;
+import org.apache.ddlutils.platform.SqlBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import com.cadalys.heroku.utils.DBUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Types;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 
 @Service
@@ -55,12 +73,35 @@ public class ArchiveService {
     public static final String PARENT_EXT_ID_1_COLUMN = "ParentExtID1";
     public static final String PARENT_EXT_ID_2_COLUMN = "ParentExtID2";
     public static final String PARENT_EXT_ID_3_COLUMN = "ParentExtID3";
+    public static final String ARCHIVED_DATE_COLUMN = "archiveddate";
+    public static final String ARCHIVE_SETUP_TABLE_NAME = "cadarch__archive_setup";
     private static final String ATTACHMENT_TABLE_NAME = "attachment";
 
     private static final String SFID = "sfid";
 
     private static final String SQL_SPACE = " ";
 
+    private static final String TRIGGER_KEY_SEPARATOR = "/";
+
+    private static final String TRIGGER_FUNCTION_SOURCE_STATEMENT =
+            "select p.prosrc from pg_trigger t join pg_proc p on p.oid = t.tgfoid " +
+                    "where t.tgrelid = to_regclass(?) and t.tgname = lower(?) and p.proname = lower(?)";
+
+    private static final String SAVE_SETUP_STATEMENT =
+            "insert into " + DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_SETUP_TABLE_NAME +
+                    " (object_name, parent_obj, ref_field, archive_mode, archived_columns) values (LOWER(?), ?, ?, " +
+                    "?, ?) on conflict (object_name) do update set parent_obj = excluded.parent_obj, ref_field = " +
+                    "excluded.ref_field, archive_mode = excluded.archive_mode, archived_columns = " +
+                    "excluded.archived_columns, updated_at = now()";
+
+    private static final String SETUP_TABLE_EXISTS_STATEMENT =
+            "select to_regclass('" + DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_SETUP_TABLE_NAME +
+                    "') is not null";
+
+    private static final String DELETE_SETUP_STATEMENT =
+            "delete from " + DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_SETUP_TABLE_NAME +
+                    " where object_name = LOWER(?)";
+
     private final CloneHelper cloneHelper = new CloneHelper();
 
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -68,31 +109,70 @@ public class ArchiveService {
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private ArchivePartitionService archivePartitionService;
+
+    @Autowired
+    private SchemaModelService schemaModelService;
+
+    @Autowired
+    private OnlineDdlService onlineDdlService;
+
+    @Autowired
+    private ArchiveIndexService archiveIndexService;
+
+    @Autowired
+    private AttachmentBlobService attachmentBlobService;
+
+    @Value("${archive.setup.parallelism:4}")
+    private int setupParallelism;
+
+    private ExecutorService setupExecutor;
+
     /**
      * Delete triggers of specified objects
      *
      * @param objects array of object(table name)
      */
     public void deleteObjectsTrigger(ArchiveTableNames objects) {
+        deleteObjectsTrigger(objects, e -> {
+        });
+    }
+
+    /**
+     * Delete triggers of specified objects, reporting every handled object to the listener
+     *
+     * @param objects          array of object(table name)
+     * @param progressListener
+     * @return result of every object
+     */
+    public List<ArchiveObjectResult> deleteObjectsTrigger(ArchiveTableNames objects,
+            Consumer<ArchiveObjectResult> progressListener) {
         List<String> errors = new ArrayList<>();
+        final List<ArchiveObjectResult> results = new ArrayList<>();
 
         try (final Connection connection = dataSource.getConnection()) {
-            final Platform platformInstance = PlatformFactory.createNewPlatformInstance(dataSource);
-            final Database database = platformInstance.readModelFromDatabase(DataSourceConfiguration.SCHEMA_NAME,
-                    false);
-            final Table[] tables = database.getTables();
             connection.setAutoCommit(false);
 
             for (String objectName : objects.getObjects()) {
+                final long started = System.currentTimeMillis();
+                final ArchiveObjectResult result = new ArchiveObjectResult(objectName);
                 try {
                     String sql = DBUtils.deleteTriggerStatement(DataSourceConfiguration.SCHEMA_NAME, objectName);
                     logger.info(sql);
                     connection.createStatement().execute(sql);
+                    deleteSetup(connection, objectName);
                     connection.commit();
+                    result.setStatus(ArchiveObjectResult.Status.TRIGGERS_DROPPED);
                 } catch (Exception e) {
                     logger.error("Error archiving object to database", e);
                     errors.add(e.getMessage());
+                    result.setStatus(ArchiveObjectResult.Status.FAILED);
+                    result.setError(e.getMessage());
                 }
+                result.setDurationMillis(System.currentTimeMillis() - started);
+                results.add(result);
+                progressListener.accept(result);
             }
         } catch (Exception e) {
             errors.add(e.getMessage());
@@ -101,42 +181,88 @@ public class ArchiveService {
         if (!errors.isEmpty()) {
             throw new ArchiveException(errors);
         }
+        return results;
     }
 
     /**
-     * Check archive tables and triggers of specified objects
+     * Check archive tables and triggers of specified objects. Objects are handled in parallel, each on its own
+     * connection, and only objects whose archive table or triggers differ from the desired state are changed
      *
      * @param objects array of object(table name)
+     * @return setup result of every object
      */
-    public void checkObjects(ArchiveObjects objects) {
+    public List<ArchiveObjectResult> checkObjects(ArchiveObjects objects) {
+        return checkObjects(objects, e -> {
+        });
+    }
+
+    /**
+     * Check archive tables and triggers of specified objects, reporting every handled object to the listener
+     * as soon as it is done
+     *
+     * @param objects          array of object(table name)
+     * @param progressListener
+     * @return setup result of every object
+     */
+    public List<ArchiveObjectResult> checkObjects(ArchiveObjects objects,
+            Consumer<ArchiveObjectResult> progressListener) {
         List<String> errors = new ArrayList<>();
+        final List<ArchiveObjectResult> results = new ArrayList<>();
 
         try (final Connection connection = dataSource.getConnection()) {
-            final Platform platformInstance = PlatformFactory.createNewPlatformInstance(dataSource);
-            final PlatformInfo platformInfo = platformInstance.getPlatformInfo();
-            platformInfo.setMaxColumnNameLength(100);
-            platformInfo.setMaxConstraintNameLength(100);
-            platformInfo.setMaxForeignKeyNameLength(100);
-            platformInfo.setMaxIdentifierLength(100);
-            platformInfo.setMaxTableNameLength(100);
-
-            final Database database = platformInstance.readModelFromDatabase(DataSourceConfiguration.SCHEMA_NAME,
-                    false);
-            final Table[] tables = database.getTables();
+            final Set<String> tableNames = new HashSet<>();
+            for (ArchiveObject object : objects.getObjects()) {
+                tableNames.add(object.getChildObj());
+                tableNames.add(ARCHIVE_TABLE_PREFIX + object.getChildObj());
+            }
+            final Map<String, Table> tables = schemaModelService.getTables(tableNames);
+            final String platformName = schemaModelService.getPlatformName();
             connection.setAutoCommit(false);
 
-            for (ArchiveObject object : objects.getObjects()) {
+            try {
+                String sql = DBUtils.getArchivePlanIndexStatement(DataSourceConfiguration.SCHEMA_NAME);
+                logger.info(sql);
+                onlineDdlService.execute(connection, sql, new ArrayList<>());
+            } catch (Exception e) {
+                logger.error("Error creating archive plan index", e);
+                errors.add(e.getMessage());
+            }
+
+            try {
+                String sql = DBUtils.getArchiveSetupTableStatement(DataSourceConfiguration.SCHEMA_NAME);
+                logger.info(sql);
+                onlineDdlService.execute(connection, sql, new ArrayList<>());
+            } catch (Exception e) {
+                logger.error("Error creating archive setup table", e);
+                errors.add(e.getMessage());
+            }
+
+            if (objects.getObjects().stream().anyMatch(e -> e.getArchiveMode() == ArchiveMode.QUEUE)) {
                 try {
-                    String sql = handleTableChanges(platformInstance, database, tables, object.getChildObj(),
-                            object.getParentObj(), object.getRefField());
+                    String sql = DBUtils.getArchiveQueueTableStatement(DataSourceConfiguration.SCHEMA_NAME);
                     logger.info(sql);
-                    connection.createStatement().execute(sql);
-                    connection.commit();
+                    onlineDdlService.execute(connection, sql, new ArrayList<>());
                 } catch (Exception e) {
-                    logger.error("Error archiving object to the database", e);
+                    logger.error("Error creating archive queue", e);
                     errors.add(e.getMessage());
                 }
             }
+
+            final List<Future<ArchiveObjectResult>> futures = new ArrayList<>();
+            for (ArchiveObject object : objects.getObjects()) {
+                futures.add(setupExecutor.submit(() -> {
+                    final ArchiveObjectResult result = checkObject(platformName, tables, object);
+                    progressListener.accept(result);
+                    return result;
+                }));
+            }
+            for (Future<ArchiveObjectResult> future : futures) {
+                final ArchiveObjectResult result = future.get();
+                if (result.getStatus() == ArchiveObjectResult.Status.FAILED) {
+                    errors.add(String.format("%s: %s", result.getObject(), result.getError()));
+                }
+                results.add(result);
+            }
         } catch (Exception e) {
             errors.add(e.getMessage());
         }
@@ -144,23 +270,176 @@ public class ArchiveService {
         if (!errors.isEmpty()) {
             throw new ArchiveException(errors);
         }
+        return results;
+    }
+
+    @PostConstruct
+    public void init() {
+        setupExecutor = Executors.newFixedThreadPool(setupParallelism);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        setupExecutor.shutdownNow();
+    }
+
+    private ArchiveObjectResult checkObject(String platformName, Map<String, Table> tables, ArchiveObject object) {
+        final long started = System.currentTimeMillis();
+        final ArchiveObjectResult result = new ArchiveObjectResult(object.getChildObj());
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            // sql builders keep state, so every object gets its own platform instance
+            final Platform platform = PlatformFactory.createNewPlatformInstance(platformName);
+            final PlatformInfo platformInfo = platform.getPlatformInfo();
+            platformInfo.setMaxColumnNameLength(100);
+            platformInfo.setMaxConstraintNameLength(100);
+            platformInfo.setMaxForeignKeyNameLength(100);
+            platformInfo.setMaxIdentifierLength(100);
+            platformInfo.setMaxTableNameLength(100);
+
+            final Table originalTable = findTable(tables, object.getChildObj())
+                    .orElseThrow(() -> new Exception(String.format("object %s doesn't exists",
+                            object.getChildObj())));
+            final String archiveTableName = ARCHIVE_TABLE_PREFIX + object.getChildObj();
+            final boolean partitionedArchiveTable = archivePartitionService.isPartitioned(connection,
+                    archiveTableName);
+            final boolean archiveTableExists = findTable(tables, archiveTableName).isPresent() ||
+                    partitionedArchiveTable;
+            final boolean partitioned = archiveTableExists ? partitionedArchiveTable :
+                    Boolean.TRUE.equals(object.getPartitioned());
+
+            final String tableSql = handleTableChanges(platform, tables, connection, object).trim();
+            final Map<String, String> triggers = getTriggerStatements(originalTable, object);
+            final StringBuilder sqlBuilder = new StringBuilder(tableSql);
+            boolean triggersChanged = false;
+            for (Map.Entry<String, String> trigger : triggers.entrySet()) {
+                if (!tableSql.isEmpty() || !isTriggerUpToDate(connection, trigger.getKey(), trigger.getValue())) {
+                    sqlBuilder.append(SQL_SPACE);
+                    sqlBuilder.append(trigger.getValue());
+                    triggersChanged = true;
+                }
+            }
+            // indexes go last, so the archive trigger is in place while they are built
+            final String indexSql = archiveIndexService.getCreateIndexesSql(connection, archiveTableName,
+                    getIndexedColumns(originalTable, object), !archiveTableExists, partitioned).trim();
+            sqlBuilder.append(SQL_SPACE);
+            sqlBuilder.append(indexSql);
+
+            final String sql = sqlBuilder.toString().trim();
+            if (sql.isEmpty()) {
+                result.setStatus(ArchiveObjectResult.Status.UNCHANGED);
+            } else {
+                logger.info(sql);
+                try {
+                    onlineDdlService.execute(connection, sql, result.getStatements());
+                } finally {
+                    // statements executed before a failure stay committed
+                    schemaModelService.invalidate(archiveTableName);
+                }
+                result.setStatus(!archiveTableExists ? ArchiveObjectResult.Status.CREATED
+                        : !tableSql.isEmpty() || !triggersChanged ? ArchiveObjectResult.Status.ALTERED
+                        : ArchiveObjectResult.Status.TRIGGERS_UPDATED);
+            }
+            saveSetup(connection, object, getArchivedColumns(originalTable));
+        } catch (Exception e) {
+            logger.error("Error archiving object to the database", e);
+            result.setStatus(ArchiveObjectResult.Status.FAILED);
+            result.setError(e.getMessage());
+        }
+        result.setDurationMillis(System.currentTimeMillis() - started);
+        return result;
+    }
+
+    /**
+     * Record the parent reference, archive mode and columns the triggers of the object were generated from
+     */
+    private void saveSetup(Connection connection, ArchiveObject object, List<String> archivedColumns)
+            throws Exception {
+        final boolean hasParent = object.getParentObj() != null && !object.getParentObj().isEmpty() &&
+                object.getRefField() != null && !object.getRefField().isEmpty();
+        try (final PreparedStatement statement = connection.prepareStatement(SAVE_SETUP_STATEMENT)) {
+            statement.setString(1, object.getChildObj());
+            statement.setString(2, hasParent ? object.getParentObj() : null);
+            statement.setString(3, hasParent ? object.getRefField() : null);
+            statement.setString(4, (object.getArchiveMode() == ArchiveMode.QUEUE ? ArchiveMode.QUEUE :
+                    ArchiveMode.SYNC).name());
+            statement.setArray(5, connection.createArrayOf("text", archivedColumns.toArray()));
+            statement.executeUpdate();
+        }
+        connection.commit();
+    }
+
+    private void deleteSetup(Connection connection, String objectName) throws Exception {
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(SETUP_TABLE_EXISTS_STATEMENT)) {
+            if (!resultSet.next() || !resultSet.getBoolean(1)) {
+                return;
+            }
+        }
+        try (final PreparedStatement statement = connection.prepareStatement(DELETE_SETUP_STATEMENT)) {
+            statement.setString(1, objectName);
+            statement.executeUpdate();
+        }
     }
 
-    private String handleTableChanges(Platform platform, Database database, Table[] tables, String table,
-            String parentObject, String refField) throws Exception {
+    /**
+     * Columns of the archive table which are indexed: parent links, body hashes of blob backed attachments, and
+     * columns the object opted in for. Sfid lookups of partitioned tables use their (sfid, archiveddate) key
+     */
+    private List<String> getIndexedColumns(Table originalTable, ArchiveObject object) throws Exception {
+        final List<String> columns = new ArrayList<>(getParentExtIdColumns(object.getParentObj(),
+                object.getChildObj().equalsIgnoreCase(ATTACHMENT_TABLE_NAME)));
+        if (getBlobBodyColumn(originalTable, object) != null) {
+            columns.add(AttachmentBlobService.BODY_HASH_COLUMN);
+        }
+        if (object.getIndexedColumns() != null) {
+            for (String column : object.getIndexedColumns()) {
+                final boolean archived = originalTable.findColumn(column, false) != null ||
+                        column.equalsIgnoreCase(ARCHIVED_DATE_COLUMN);
+                if (!archived) {
+                    throw new Exception(String.format("column %s of %s can't be indexed, it isn't archived", column,
+                            object.getChildObj()));
+                }
+                if (columns.stream().noneMatch(column::equalsIgnoreCase)) {
+                    columns.add(column);
+                }
+            }
+        }
+        return columns;
+    }
+
+    private Optional<Table> findTable(Map<String, Table> tables, String name) {
+        return Optional.ofNullable(tables.get(name));
+    }
+
+    /**
+     * Generate sql which creates or evolves archive table of the object. The read model is shared between
+     * objects handled in parallel, so tables are cloned before they are changed
+     */
+    private String handleTableChanges(Platform platform, Map<String, Table> tables, Connection connection,
+            ArchiveObject object) throws Exception {
+        final String table = object.getChildObj();
+        final String parentObject = object.getParentObj();
         final String archiveTableName = ARCHIVE_TABLE_PREFIX + table;
-        final Optional<Table> originalTableOptional = Arrays.stream(tables).filter(e -> e.getName().equals(table))
-                .findFirst();
+        final Optional<Table> originalTableOptional = findTable(tables, table);
         if (!originalTableOptional.isPresent()) {
             throw new Exception(String.format("object %s doesn't exists", table));
         }
         final Table originalTable = originalTableOptional.get();
-        final Optional<Table> archiveOptional = Arrays.stream(tables).filter(e -> e.getName().equals(archiveTableName))
-                .findAny();
+        final Optional<Table> archiveOptional = findTable(tables, archiveTableName);
         final boolean isAttachmentTable = table.equalsIgnoreCase(ATTACHMENT_TABLE_NAME);
         final StringBuilder sqlBuilder = new StringBuilder();
-        if (archiveOptional.isPresent()) {
-            final Table archiveTable = archiveOptional.get();
+        if (archivePartitionService.isPartitioned(connection, archiveTableName)) {
+            // partitioned parents are invisible to ddlutils, new columns are taken from the catalog instead
+            sqlBuilder.append(archivePartitionService.getAddMissingColumnsSql(connection, table,
+                    getParentExtIdColumns(parentObject, isAttachmentTable)));
+            sqlBuilder.append(SQL_SPACE);
+        } else if (archiveOptional.isPresent()) {
+            if (Boolean.TRUE.equals(object.getPartitioned())) {
+                logger.warn("{} already exists as a plain table and won't be partitioned", archiveTableName);
+            }
+            final Table currentArchiveTable = archiveOptional.get();
+            final Table archiveTable = cloneHelper.clone(currentArchiveTable, true, false, null, true);
             List<Column> originalTableColumns = new ArrayList<>(Arrays.asList(originalTable.getColumns()));
             List<Column> archiveTableColumns = new ArrayList<>(Arrays.asList(archiveTable.getColumns()));
 
@@ -177,6 +456,10 @@ public class ArchiveService {
                         }
                     });
 
+            if (!newColumns.isEmpty()) {
+                logger.info("adding {} new columns to {}, archive procedure will be regenerated", newColumns.size(),
+                        archiveTableName);
+            }
             for (Column originalTableColumn : newColumns) {
                 final Column newColumn = cloneHelper.clone(originalTableColumn, true);
                 newColumn.setRequired(false);
@@ -186,6 +469,17 @@ public class ArchiveService {
 
             checkAndAddParentExtIdModel(parentObject, isAttachmentTable, archiveTable, archiveTableColumns);
 
+            sqlBuilder.append(getAlterArchiveTableSql(platform, currentArchiveTable, archiveTable));
+            sqlBuilder.append(SQL_SPACE);
+            if (currentArchiveTable.findColumn(ARCHIVED_DATE_COLUMN, false) == null) {
+                sqlBuilder.append(DBUtils.getArchivedDateColumnStatement(DataSourceConfiguration.SCHEMA_NAME,
+                        archiveTableName));
+                sqlBuilder.append(SQL_SPACE);
+            }
+        } else if (Boolean.TRUE.equals(object.getPartitioned())) {
+            sqlBuilder.append(archivePartitionService.getCreateTableSql(originalTable,
+                    getParentExtIdColumns(parentObject, isAttachmentTable)));
+            sqlBuilder.append(SQL_SPACE);
         } else {
             final Table archiveTable = cloneHelper.clone(originalTable, false, false, null, true);
             archiveTable.setName(archiveTableName);
@@ -216,22 +510,161 @@ public class ArchiveService {
             checkAndAddParentExtIdModel(parentObject, isAttachmentTable, archiveTable,
                     new ArrayList<>(Arrays.asList(archiveTableColumns)));
 
-            database.addTable(archiveTable);
+            sqlBuilder.append(getAlterArchiveTableSql(platform, null, archiveTable));
+            sqlBuilder.append(SQL_SPACE);
+            sqlBuilder.append(DBUtils.getArchivedDateColumnStatement(DataSourceConfiguration.SCHEMA_NAME,
+                    archiveTableName));
+            sqlBuilder.append(SQL_SPACE);
         }
-        sqlBuilder.append(platform.getAlterTablesSql(database));
-        sqlBuilder.append(SQL_SPACE);
-        sqlBuilder.append(DBUtils.getArchiveTriggerStatement(DataSourceConfiguration.SCHEMA_NAME, table));
-        sqlBuilder.append(SQL_SPACE);
 
+        return sqlBuilder.toString();
+    }
+
+    /**
+     * Generate trigger scripts of the object, keyed by the trigger they install
+     *
+     * @param originalTable
+     * @param object
+     * @return map of trigger key to sql script
+     */
+    private Map<String, String> getTriggerStatements(Table originalTable, ArchiveObject object) {
+        final String table = object.getChildObj();
+        final String parentObject = object.getParentObj();
+        final String refField = object.getRefField();
+        final boolean isAttachmentTable = table.equalsIgnoreCase(ATTACHMENT_TABLE_NAME);
+        final Map<String, String> triggers = new LinkedHashMap<>();
+
+        // the trigger body lists the source columns explicitly, so it is generated on every setup call and
+        // replaced whenever it no longer matches the archive table after the column diff
+        final List<String> archivedColumns = getArchivedColumns(originalTable);
+        final boolean queued = object.getArchiveMode() == ArchiveMode.QUEUE;
+        if (object.getTriggerMode() == TriggerMode.STATEMENT) {
+            triggers.put(triggerKey(table, "a__" + table + "_delete", "archive_statement_procedure_" + table),
+                    DBUtils.getArchiveStatementTriggerStatement(DataSourceConfiguration.SCHEMA_NAME, table,
+                            archivedColumns, queued));
+        } else {
+            triggers.put(triggerKey(table, "a__" + table + "_delete", "archive_procedure_" + table),
+                    DBUtils.getArchiveTriggerStatement(DataSourceConfiguration.SCHEMA_NAME, table,
+                            archivedColumns, queued));
+        }
 
         if (parentObject != null && !parentObject.isEmpty() && refField != null && !refField.isEmpty()) {
-            sqlBuilder.append(
+            triggers.put(triggerKey(ARCHIVE_TABLE_PREFIX + table, "a__" + table + "_insert",
+                    "update_parent_ext_id_procedure_" + table),
                     DBUtils.getUpdateParentExtIdTriggerStatement(DataSourceConfiguration.SCHEMA_NAME, table, refField,
                             isAttachmentTable));
-            sqlBuilder.append(SQL_SPACE);
         }
 
-        return sqlBuilder.toString();
+        final Column bodyColumn = getBlobBodyColumn(originalTable, object);
+        if (bodyColumn != null) {
+            triggers.put(triggerKey(ARCHIVE_TABLE_PREFIX + table, "a__" + table + "_blob",
+                    "store_attachment_body_" + table),
+                    DBUtils.getAttachmentBlobTriggerStatement(DataSourceConfiguration.SCHEMA_NAME, table,
+                            bodyColumn.getName(), isBinary(bodyColumn)));
+        }
+        return triggers;
+    }
+
+    /**
+     * Source columns listed by the archive trigger
+     */
+    private List<String> getArchivedColumns(Table originalTable) {
+        return Arrays.stream(originalTable.getColumns()).map(Column::getName).collect(Collectors.toList());
+    }
+
+    /**
+     * Body column of attachments whose archived bodies go to the blob store, or null
+     */
+    private Column getBlobBodyColumn(Table originalTable, ArchiveObject object) {
+        if (!attachmentBlobService.isEnabled() || !object.getChildObj().equalsIgnoreCase(ATTACHMENT_TABLE_NAME)) {
+            return null;
+        }
+        return originalTable.findColumn(attachmentBlobService.getBodyColumn(), false);
+    }
+
+    private boolean isBinary(Column column) {
+        switch (column.getTypeCode()) {
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private String triggerKey(String table, String trigger, String function) {
+        return String.join(TRIGGER_KEY_SEPARATOR, table, trigger, function);
+    }
+
+    /**
+     * Check whether the trigger is installed and its function has the same body as the generated script
+     */
+    private boolean isTriggerUpToDate(Connection connection, String triggerKey, String sql) throws Exception {
+        final String[] parts = triggerKey.split(TRIGGER_KEY_SEPARATOR);
+        return isTriggerUpToDate(connection, parts[0], parts[1], parts[2], sql);
+    }
+
+    /**
+     * Check whether the trigger of the table exists and runs the function body generated by the sql. The
+     * connection must not be in auto commit mode
+     *
+     * @param connection
+     * @param table      table name without schema
+     * @param trigger    trigger name
+     * @param function   trigger function name
+     * @param sql        script creating the function
+     * @return
+     * @throws Exception
+     */
+    boolean isTriggerUpToDate(Connection connection, String table, String trigger, String function, String sql)
+            throws Exception {
+        try (final PreparedStatement statement = connection.prepareStatement(TRIGGER_FUNCTION_SOURCE_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + table);
+            statement.setString(2, trigger);
+            statement.setString(3, function);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getString(1).equals(DBUtils.getFunctionBody(sql));
+            }
+        } finally {
+            connection.commit();
+        }
+    }
+
+    /**
+     * Generate sql which brings the archive table from its current state to the desired one. Only the archive
+     * table takes part in the comparison, so tables created in the schema after the model was read are never
+     * reported as removed
+     *
+     * @param platform
+     * @param currentArchiveTable archive table as it is in the database, or null when it doesn't exist yet
+     * @param desiredArchiveTable
+     * @return sql script
+     * @throws IOException
+     */
+    private String getAlterArchiveTableSql(Platform platform, Table currentArchiveTable, Table desiredArchiveTable)
+            throws IOException {
+        final Database currentModel = new Database();
+        if (currentArchiveTable != null) {
+            currentModel.addTable(currentArchiveTable);
+        }
+        final Database desiredModel = new Database();
+        desiredModel.addTable(desiredArchiveTable);
+
+        final StringWriter writer = new StringWriter();
+        final SqlBuilder sqlBuilder = platform.getSqlBuilder();
+        sqlBuilder.setWriter(writer);
+        sqlBuilder.alterDatabase(currentModel, desiredModel, null);
+        return writer.toString();
+    }
+
+    private List<String> getParentExtIdColumns(String parentObject, boolean isAttachmentTable) {
+        if (parentObject == null || parentObject.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return isAttachmentTable ? Arrays.asList(PARENT_EXT_ID_1_COLUMN, PARENT_EXT_ID_2_COLUMN,
+                PARENT_EXT_ID_3_COLUMN) : Collections.singletonList(PARENT_EXT_ID_COLUMN);
     }
 
     private void checkAndAddParentExtIdModel(String parentObject, boolean isAttachmentTable, Table archiveTable,
@@ -0,0 +1,362 @@
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.utils.DBUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Bounded cache of archive statuses keyed by sfid, unknown sfids are cached as well. Entries are evicted least
+ * recently used first once the cache is full and expire after the configured time to live.
+ * <p/>
+ * A trigger on the archive plan table publishes sfids of changed rows, entries are dropped as the notifications
+ * arrive. The cache is only used while the listener is connected, changes made while it was disconnected are
+ * unknown and drop the whole cache.
+ * <p/>
+ * Every invalidation takes the next number of a sequence and stamps the invalidated sfid with it. A status loaded
+ * before a change of its sfid was published is not cached, while statuses of other sfids loaded at the same time
+ * still are.
+ */
+@Service
+public class ArchiveStatusCacheService {
+
+    public static final String STATUS_CHANGE_CHANNEL = "cadarch_status_change";
+
+    private static final String STATUS_CHANGE_FUNCTION = "cadarch_status_change";
+
+    private static final String STATUS_CHANGE_TRIGGER_SUFFIX = "_status_change";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Map<String, Long> stamps = new HashMap<>();
+
+    private long clearedAt;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong expirations = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+
+    private Map<String, CacheEntry> entries;
+
+    private volatile boolean listening;
+
+    private volatile boolean running;
+
+    private Thread listener;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private OnlineDdlService onlineDdlService;
+
+    @Autowired
+    private ArchiveService archiveService;
+
+    @Value("${archive.status.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${archive.status.cache.max-size:100000}")
+    private int maxSize;
+
+    @Value("${archive.status.cache.ttl:300000}")
+    private long ttl;
+
+    @Value("${archive.status.cache.listen-interval:500}")
+    private long listenInterval;
+
+    @PostConstruct
+    public void init() {
+        entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        // the trigger also writes the log read by the change feed, so it's installed even when caching is off
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            final String sql = DBUtils.getStatusChangeTriggerStatement(DataSourceConfiguration.SCHEMA_NAME,
+                    ArchiveStatusService.ARCHIVE_TABLE_NAME);
+            if (!archiveService.isTriggerUpToDate(connection, ArchiveStatusService.ARCHIVE_TABLE_NAME,
+                    ArchiveStatusService.ARCHIVE_TABLE_NAME + STATUS_CHANGE_TRIGGER_SUFFIX, STATUS_CHANGE_FUNCTION,
+                    sql)) {
+                logger.info(sql);
+                onlineDdlService.execute(connection, sql, new ArrayList<>());
+            }
+        } catch (Exception e) {
+            logger.warn("Archive status change trigger can't be installed, statuses won't be cached or fed: {}",
+                    e.getMessage());
+            return;
+        }
+        if (!enabled) {
+            return;
+        }
+        running = true;
+        listener = new Thread(this::listen, "archive-status-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (listener != null) {
+            listener.interrupt();
+        }
+    }
+
+    /**
+     * Current invalidation sequence number, taken before statuses are loaded from the database and passed to
+     * {@link #put(String, Long, long)} or {@link #putUnknown(String, long)}
+     *
+     * @return
+     */
+    public long getGeneration() {
+        return sequence.get();
+    }
+
+    /**
+     * Get cached status of the sfid
+     *
+     * @param sfid
+     * @return cached status, or null when the sfid isn't cached
+     */
+    public CachedStatus get(String sfid) {
+        if (!listening) {
+            return null;
+        }
+        final CacheEntry entry;
+        synchronized (entries) {
+            entry = entries.get(sfid);
+            if (entry != null && System.currentTimeMillis() - entry.loadedAt > ttl) {
+                entries.remove(sfid);
+                expirations.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.status;
+    }
+
+    /**
+     * Cache status of the sfid found in the archive plan, unless a change of the sfid was published after the
+     * status was loaded
+     *
+     * @param sfid
+     * @param timestamp      lastmodifieddate of the plan row in milliseconds, may be null
+     * @param loadGeneration sequence number taken before the status was loaded
+     */
+    public void put(String sfid, Long timestamp, long loadGeneration) {
+        put(sfid, new CachedStatus(true, timestamp), loadGeneration);
+    }
+
+    /**
+     * Cache the sfid as unknown to the archive plan, unless a change of the sfid was published after it was
+     * looked up
+     *
+     * @param sfid
+     * @param loadGeneration sequence number taken before the sfid was looked up
+     */
+    public void putUnknown(String sfid, long loadGeneration) {
+        put(sfid, CachedStatus.UNKNOWN, loadGeneration);
+    }
+
+    /**
+     * Whether changes of archive statuses are being received
+     *
+     * @return
+     */
+    public boolean isListening() {
+        return listening;
+    }
+
+    /**
+     * Register listener of archive status changes
+     *
+     * @param listener receives sfid of every changed archive plan row, or null when changes may have been missed
+     */
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Cache hit, miss and eviction counters
+     *
+     * @return
+     */
+    public Map<String, Object> getMetrics() {
+        final Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", listening);
+        synchronized (entries) {
+            metrics.put("size", entries.size());
+        }
+        metrics.put("maxSize", maxSize);
+        metrics.put("hits", hits.get());
+        metrics.put("misses", misses.get());
+        metrics.put("evictions", evictions.get());
+        metrics.put("expirations", expirations.get());
+        metrics.put("invalidations", invalidations.get());
+        return metrics;
+    }
+
+    private void put(String sfid, CachedStatus status, long loadGeneration) {
+        if (!listening) {
+            return;
+        }
+        synchronized (entries) {
+            if (clearedAt <= loadGeneration && stamps.getOrDefault(sfid, 0L) <= loadGeneration) {
+                entries.put(sfid, new CacheEntry(status));
+            }
+        }
+    }
+
+    private void invalidate(String sfid) {
+        synchronized (entries) {
+            final long stamp = sequence.incrementAndGet();
+            // stamps only need to outlive loads in flight, once there are too many they are replaced by a clear
+            if (sfid == null || stamps.size() >= maxSize) {
+                clearedAt = stamp;
+                stamps.clear();
+            }
+            if (sfid == null) {
+                entries.clear();
+            } else {
+                stamps.put(sfid, stamp);
+                if (entries.remove(sfid) != null) {
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+        changeListeners.forEach(e -> e.accept(sfid));
+    }
+
+    private void listen() {
+        while (running) {
+            try (final Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(true);
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + STATUS_CHANGE_CHANNEL);
+                }
+                final PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                // changes made while the listener was disconnected are unknown
+                invalidate(null);
+                listening = true;
+                try {
+                    while (running) {
+                        // notifications are only received along with a server round trip
+                        try (final Statement statement = connection.createStatement()) {
+                            statement.execute("SELECT 1");
+                        }
+                        final PGNotification[] notifications = pgConnection.getNotifications();
+                        if (notifications != null) {
+                            for (PGNotification notification : notifications) {
+                                invalidate(notification.getParameter());
+                            }
+                        }
+                        Thread.sleep(listenInterval);
+                    }
+                } finally {
+                    listening = false;
+                    invalidate(null);
+                    try (final Statement statement = connection.createStatement()) {
+                        statement.execute("UNLISTEN *");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Error listening for archive status changes", e);
+                try {
+                    Thread.sleep(listenInterval);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Archive status held by the cache, an sfid which isn't in the archive plan is cached as unknown
+     */
+    public static class CachedStatus {
+
+        private static final CachedStatus UNKNOWN = new CachedStatus(false, null);
+
+        private final boolean known;
+        private final Long timestamp;
+
+        private CachedStatus(boolean known, Long timestamp) {
+            this.known = known;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Whether the sfid is in the archive plan
+         *
+         * @return
+         */
+        public boolean isKnown() {
+            return known;
+        }
+
+        /**
+         * Lastmodifieddate of the plan row in milliseconds
+         *
+         * @return
+         */
+        public Long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final CachedStatus status;
+        private final long loadedAt = System.currentTimeMillis();
+
+        private CacheEntry(CachedStatus status) {
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.exception.ArchiveStatusException;
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Feed of archive plan changes read from the change log written by the status change trigger of the plan table,
+ * with keyset pagination over (transaction id, log id), so callers only fetch what changed since their previous
+ * call. A caller waiting for changes is parked until a change notification of the plan table arrives, or the log
+ * is checked again after the poll interval when notifications aren't received.
+ * <p/>
+ * Only changes of transactions older than the oldest one still running are returned. Every later change belongs to
+ * a transaction with a greater id, so a change is never committed behind a cursor already handed out and the feed
+ * doesn't skip rows. A long running transaction holds the feed back until it ends. Changes of one transaction come
+ * in the order they were made, rows deleted from the plan table are reported as deleted.
+ * <p/>
+ * Notifications only mark the feed as changed, parked callers are checked at most once per wake interval. Callers
+ * parked at the same cursor are checked by a single query.
+ * <p/>
+ * The log keeps changes for the retention period, a cursor older than that misses the pruned changes. Changes made
+ * before the trigger was installed aren't part of the feed.
+ */
+@Service
+public class ArchiveStatusFeedService {
+
+    public static final String CHANGE_LOG_TABLE_NAME = "cadarch__archive_plan_changes";
+
+    private static final String CHANGES_STATEMENT =
+            "select id, xid, sfid, lastmodifieddate, deleted from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    CHANGE_LOG_TABLE_NAME + " where %1$s and xid < txid_snapshot_xmin(txid_current_snapshot()) " +
+                    "order by xid, id limit ?";
+
+    private static final String AFTER_CURSOR_CONDITION = "(xid, id) > (?, ?)";
+
+    private static final String PRUNE_STATEMENT = "delete from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+            CHANGE_LOG_TABLE_NAME + " where logged_at < now() - make_interval(days => ?)";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+
+    private final AtomicBoolean changed = new AtomicBoolean();
+
+    private ExecutorService wakeExecutor;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ArchiveStatusCacheService archiveStatusCacheService;
+
+    @Autowired
+    private Gson gson;
+
+    @Value("${archive.status.feed.max-limit:10000}")
+    private int maxLimit;
+
+    @Value("${archive.status.feed.max-wait:60000}")
+    private long maxWait;
+
+    @Value("${archive.status.feed.max-waiters:200}")
+    private int maxWaiters;
+
+    @Value("${archive.status.feed.workers:2}")
+    private int workers;
+
+    @Value("${archive.status.feed.retention-days:7}")
+    private int retentionDays;
+
+    @PostConstruct
+    public void init() {
+        wakeExecutor = Executors.newFixedThreadPool(workers);
+        archiveStatusCacheService.addChangeListener(e -> changed.set(true));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        wakeExecutor.shutdownNow();
+    }
+
+    /**
+     * Get archive plan changes logged after the cursor
+     *
+     * @param xid   transaction id of the cursor, or null to read from the beginning of the log
+     * @param seq   log id of the cursor
+     * @param limit maximal number of returned changes
+     * @param wait  milliseconds to wait for a change when there is none after the cursor, 0 not to wait
+     * @return json of the changes and the cursor to pass to the next call
+     */
+    public DeferredResult<String> getChanges(Long xid, Long seq, int limit, long wait) {
+        final Cursor cursor = new Cursor(xid, xid != null && seq != null ? seq : 0L,
+                Math.max(1, Math.min(limit, maxLimit)));
+        final long timeout = Math.max(0, Math.min(wait, maxWait));
+        final DeferredResult<String> result = new DeferredResult<>(timeout > 0 ? timeout : null);
+        final Map<String, Object> changes = toChanges(cursor, readChanges(cursor, cursor.limit), cursor.limit);
+        if (timeout == 0 || hasRecords(changes)) {
+            result.setResult(gson.toJson(changes));
+            return result;
+        }
+        if (waiters.size() >= maxWaiters) {
+            throw new ArchiveStatusException(Collections.singletonList(
+                    String.format("too many callers are waiting for changes, at most %d are allowed", maxWaiters)));
+        }
+        final Waiter waiter = new Waiter(cursor, result);
+        result.onTimeout(() -> {
+            waiters.remove(waiter);
+            result.setResult(gson.toJson(changes));
+        });
+        result.onCompletion(() -> waiters.remove(waiter));
+        park(waiter);
+        return result;
+    }
+
+    /**
+     * Check parked callers again, in case change notifications aren't received
+     */
+    @Scheduled(fixedDelayString = "${archive.status.feed.poll-interval:5000}")
+    public void poll() {
+        changed.set(true);
+    }
+
+    /**
+     * Check parked callers once for all changes published since the previous wake up
+     */
+    @Scheduled(fixedDelayString = "${archive.status.feed.wake-interval:500}")
+    public void wake() {
+        if (changed.getAndSet(false)) {
+            wakeWaiters();
+        }
+    }
+
+    /**
+     * Delete changes logged before the retention period
+     */
+    @Scheduled(fixedDelayString = "${archive.status.feed.prune-interval:3600000}")
+    public void prune() {
+        try (final Connection connection = dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(PRUNE_STATEMENT)) {
+            statement.setInt(1, retentionDays);
+            final int pruned = statement.executeUpdate();
+            if (pruned > 0) {
+                logger.info("Pruned {} archive status changes", pruned);
+            }
+        } catch (Exception e) {
+            logger.warn("Archive status changes can't be pruned: {}", e.getMessage());
+        }
+    }
+
+    private void park(Waiter waiter) {
+        // the waiter is registered before the check, so a change committed in between wakes it
+        waiter.checking.set(true);
+        waiters.add(waiter);
+        check(Collections.singletonList(waiter));
+    }
+
+    private void wakeWaiters() {
+        final Map<List<Long>, List<Waiter>> groups = new HashMap<>();
+        for (Waiter waiter : waiters) {
+            // a waiter still checked since the previous wake up is left for the next one
+            if (waiter.checking.compareAndSet(false, true)) {
+                groups.computeIfAbsent(Arrays.asList(waiter.cursor.xid, waiter.cursor.seq),
+                        e -> new ArrayList<>()).add(waiter);
+            }
+        }
+        for (List<Waiter> group : groups.values()) {
+            try {
+                wakeExecutor.execute(() -> check(group));
+            } catch (RejectedExecutionException e) {
+                group.forEach(waiter -> waiter.checking.set(false));
+            }
+        }
+    }
+
+    /**
+     * Check waiters parked at the same cursor with one query, read with the largest limit among them
+     */
+    private void check(List<Waiter> group) {
+        final List<Waiter> pending = new ArrayList<>();
+        for (Waiter waiter : group) {
+            if (waiter.result.isSetOrExpired()) {
+                waiters.remove(waiter);
+            } else {
+                pending.add(waiter);
+            }
+        }
+        try {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final int limit = pending.stream().mapToInt(waiter -> waiter.cursor.limit).max().getAsInt();
+            final List<ChangedRow> rows = readChanges(pending.get(0).cursor, limit);
+            if (!rows.isEmpty()) {
+                for (Waiter waiter : pending) {
+                    waiters.remove(waiter);
+                    waiter.result.setResult(gson.toJson(toChanges(waiter.cursor, rows, limit)));
+                }
+            }
+        } catch (ArchiveStatusException e) {
+            for (Waiter waiter : pending) {
+                waiters.remove(waiter);
+                waiter.result.setErrorResult(e);
+            }
+        } finally {
+            group.forEach(waiter -> waiter.checking.set(false));
+        }
+    }
+
+    private boolean hasRecords(Map<String, Object> changes) {
+        return !((List<?>) changes.get("records")).isEmpty();
+    }
+
+    /**
+     * Build the response of the caller from rows read after its cursor
+     *
+     * @param cursor
+     * @param rows      rows read after the cursor
+     * @param readLimit limit the rows were read with, at least the limit of the cursor
+     * @return
+     */
+    private Map<String, Object> toChanges(Cursor cursor, List<ChangedRow> rows, int readLimit) {
+        final List<Map<String, Object>> records = new ArrayList<>();
+        Long lastXid = cursor.xid;
+        long lastSeq = cursor.seq;
+        for (ChangedRow row : rows.subList(0, Math.min(cursor.limit, rows.size()))) {
+            lastXid = row.xid;
+            lastSeq = row.seq;
+            final Map<String, Object> record = new LinkedHashMap<>();
+            record.put("recordId", row.sfid);
+            record.put("timestamp", row.timestamp);
+            record.put("deleted", row.deleted);
+            records.add(record);
+        }
+
+        final Map<String, Object> next = new LinkedHashMap<>();
+        next.put("xid", lastXid);
+        next.put("seq", lastSeq);
+        final Map<String, Object> changes = new LinkedHashMap<>();
+        changes.put("records", records);
+        changes.put("cursor", next);
+        changes.put("more", rows.size() > cursor.limit || rows.size() == readLimit);
+        return changes;
+    }
+
+    private List<ChangedRow> readChanges(Cursor cursor, int limit) {
+        final List<String> errors = new ArrayList<>();
+        final List<ChangedRow> rows = new ArrayList<>();
+        try (final Connection connection = dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(String.format(CHANGES_STATEMENT,
+                     cursor.xid != null ? AFTER_CURSOR_CONDITION : "true"))) {
+            int index = 1;
+            if (cursor.xid != null) {
+                statement.setLong(index++, cursor.xid);
+                statement.setLong(index++, cursor.seq);
+            }
+            statement.setInt(index, limit);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    final Timestamp timestamp = resultSet.getTimestamp(4);
+                    rows.add(new ChangedRow(resultSet.getLong(1), resultSet.getLong(2), resultSet.getString(3),
+                            timestamp != null ? timestamp.getTime() : null, resultSet.getBoolean(5)));
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error reading archive status changes", e);
+            errors.add(e.getMessage());
+        }
+
+        if (!errors.isEmpty()) {
+            throw new ArchiveStatusException(errors);
+        }
+        return rows;
+    }
+
+    private static class ChangedRow {
+
+        private final long seq;
+        private final long xid;
+        private final String sfid;
+        private final Long timestamp;
+        private final boolean deleted;
+
+        private ChangedRow(long seq, long xid, String sfid, Long timestamp, boolean deleted) {
+            this.seq = seq;
+            this.xid = xid;
+            this.sfid = sfid;
+            this.timestamp = timestamp;
+            this.deleted = deleted;
+        }
+    }
+
+    private static class Cursor {
+
+        private final Long xid;
+        private final long seq;
+        private final int limit;
+
+        private Cursor(Long xid, long seq, int limit) {
+            this.xid = xid;
+            this.seq = seq;
+            this.limit = limit;
+        }
+    }
+
+    private static class Waiter {
+
+        private final Cursor cursor;
+        private final DeferredResult<String> result;
+        private final AtomicBoolean checking = new AtomicBoolean();
+
+        private Waiter(Cursor cursor, DeferredResult<String> result) {
+            this.cursor = cursor;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.utils.SfidBloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bloom filter of sfids of the archive plan table, status lookups skip the database for sfids the filter
+ * doesn't contain. The filter is loaded by a streaming scan of the table and sfids of inserted rows are added as
+ * their change notifications arrive. It is rebuilt when notifications may have been missed and when more sfids
+ * were added than it was sized for, and isn't used until then.
+ */
+@Service
+public class ArchiveStatusFilterService {
+
+    private static final String COUNT_STATEMENT =
+            "select greatest(reltuples::bigint, 0) from pg_class where oid = to_regclass(?)";
+
+    private static final String SCAN_STATEMENT =
+            "select sfid from " + DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveStatusService.ARCHIVE_TABLE_NAME +
+                    " where sfid is not null";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final AtomicLong epoch = new AtomicLong();
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    private volatile SfidBloomFilter filter;
+
+    private volatile SfidBloomFilter building;
+
+    private volatile long builtAt;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ArchiveStatusCacheService archiveStatusCacheService;
+
+    @Value("${archive.status.filter.enabled:true}")
+    private boolean enabled;
+
+    @Value("${archive.status.filter.false-positive-probability:0.01}")
+    private double falsePositiveProbability;
+
+    @Value("${archive.status.filter.headroom:2}")
+    private double headroom;
+
+    @Value("${archive.status.filter.fetch-size:10000}")
+    private int fetchSize;
+
+    @PostConstruct
+    public void init() {
+        archiveStatusCacheService.addChangeListener(this::onChange);
+    }
+
+    /**
+     * Check whether the sfid may be in the archive plan table
+     *
+     * @param sfid
+     * @return false only when the sfid is definitely not in the table
+     */
+    public boolean mightContain(String sfid) {
+        final SfidBloomFilter current = filter;
+        if (current == null || !archiveStatusCacheService.isListening()) {
+            return true;
+        }
+        lookups.incrementAndGet();
+        if (current.mightContain(sfid)) {
+            return true;
+        }
+        skipped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Filter footprint, estimated false positive probability and lookup counters
+     *
+     * @return
+     */
+    public Map<String, Object> getMetrics() {
+        final SfidBloomFilter current = filter;
+        final Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", current != null);
+        if (current != null) {
+            metrics.put("sizeInBytes", current.getSizeInBytes());
+            metrics.put("hashCount", current.getHashCount());
+            metrics.put("insertions", current.getInsertions());
+            metrics.put("expectedFalsePositiveProbability", current.getExpectedFalsePositiveProbability());
+            metrics.put("builtAt", builtAt);
+        }
+        metrics.put("lookups", lookups.get());
+        metrics.put("skipped", skipped.get());
+        metrics.put("rebuilds", rebuilds.get());
+        return metrics;
+    }
+
+    /**
+     * Build the filter when it is missing or saturated, once the change notifications are being received
+     */
+    @Scheduled(fixedDelayString = "${archive.status.filter.check-interval:10000}")
+    public void refresh() {
+        if (!enabled || !archiveStatusCacheService.isListening()) {
+            return;
+        }
+        final SfidBloomFilter current = filter;
+        if (current != null &&
+                current.getExpectedFalsePositiveProbability() <= falsePositiveProbability * headroom) {
+            return;
+        }
+        final long buildEpoch = epoch.get();
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                final SfidBloomFilter rebuilt = new SfidBloomFilter(
+                        (long) (countRows(connection) * headroom) + 1024, falsePositiveProbability);
+                // notifications received during the scan are added as well, the scan may not see their rows
+                building = rebuilt;
+                try (final PreparedStatement statement = connection.prepareStatement(SCAN_STATEMENT)) {
+                    statement.setFetchSize(fetchSize);
+                    try (final ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            rebuilt.add(resultSet.getString(1));
+                        }
+                    }
+                }
+                if (epoch.get() == buildEpoch) {
+                    filter = rebuilt;
+                    builtAt = System.currentTimeMillis();
+                    rebuilds.incrementAndGet();
+                    logger.info("archive status filter built with {} sfids, {} bytes", rebuilt.getInsertions(),
+                            rebuilt.getSizeInBytes());
+                }
+            } finally {
+                building = null;
+                connection.rollback();
+            }
+        } catch (Exception e) {
+            logger.error("Error building archive status filter", e);
+        }
+    }
+
+    private long countRows(Connection connection) throws Exception {
+        try (final PreparedStatement statement = connection.prepareStatement(COUNT_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveStatusService.ARCHIVE_TABLE_NAME);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+        }
+    }
+
+    private void onChange(String sfid) {
+        if (sfid == null) {
+            // changes may have been missed, the filter can't be trusted until it is rebuilt
+            epoch.incrementAndGet();
+            filter = null;
+            return;
+        }
+        final SfidBloomFilter current = filter;
+        if (current != null) {
+            current.add(sfid);
+        }
+        final SfidBloomFilter rebuilt = building;
+        if (rebuilt != null) {
+            rebuilt.add(sfid);
+        }
+    }
+}
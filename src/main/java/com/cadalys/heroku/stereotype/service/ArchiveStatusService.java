@@ -2,61 +2,201 @@ package com.cadalys.heroku.stereotype.service;
 
 import com.cadalys.heroku.config.DataSourceConfiguration;
 import com.cadalys.heroku.exception.ArchiveStatusException;
+import com.google.gson.stream.JsonWriter;
+import org.postgresql.PGConnection;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Service
 public class ArchiveStatusService {
 
-    private static final String ARCHIVE_TABLE_NAME = "cadarch__archive_plan__c";
+    static final String ARCHIVE_TABLE_NAME = "cadarch__archive_plan__c";
 
     private static final String SELECT_ROW_STATEMENT =
             "select %1$s." + ColumnSelector.RECORD_ID.columnName + ", " +
                     "%1$s." + ColumnSelector.TIMESTAMP.columnName +
                     " from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s" +
-                    " where %1$s." + ColumnSelector.RECORD_ID.columnName + " in (%2$s);";
+                    " where %1$s." + ColumnSelector.RECORD_ID.columnName + " = any(?::varchar[])";
+
+    private static final LoadedRow CHUNK_DONE = new LoadedRow(null, null);
+
+    private static final int CONNECTION_CHECK_TIMEOUT = 5;
+
+    private static final String IDENTIFIERS_TABLE_NAME = "cadarch_status_ids";
+
+    private static final String CREATE_IDENTIFIERS_TABLE_STATEMENT =
+            "create temporary table %1$s (" + ColumnSelector.RECORD_ID.columnName + " varchar) on commit drop";
+
+    private static final String COPY_IDENTIFIERS_STATEMENT =
+            "copy %1$s (" + ColumnSelector.RECORD_ID.columnName + ") from stdin";
+
+    private static final String SELECT_COPIED_ROWS_STATEMENT =
+            "select %1$s." + ColumnSelector.RECORD_ID.columnName + ", " +
+                    "%1$s." + ColumnSelector.TIMESTAMP.columnName +
+                    " from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s" +
+                    " where %1$s." + ColumnSelector.RECORD_ID.columnName + " in (select i." +
+                    ColumnSelector.RECORD_ID.columnName + " from %2$s i)";
 
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private ColdTierService coldTierService;
+
+    @Autowired
+    private ArchiveStatusCacheService archiveStatusCacheService;
+
+    @Autowired
+    private ArchiveStatusFilterService archiveStatusFilterService;
+
+    @Value("${archive.status.chunk-size:50000}")
+    private int chunkSize;
+
+    @Value("${archive.status.copy-threshold:10000}")
+    private int copyThreshold;
+
+    @Value("${archive.status.fetch-size:1000}")
+    private int fetchSize;
+
+    @Value("${archive.status.parallelism:4}")
+    private int parallelism;
+
+    private ExecutorService lookupExecutor;
+
+    /**
+     * Find archive statuses of the identifiers, cached statuses are answered without a database round trip
+     *
+     * @param identifiers
+     * @return
+     */
     public List<Map<String, Object>> findByIds(final String[] identifiers) {
+        final List<Map<String, Object>> records = new ArrayList<>();
+        lookup(identifiers, (recordId, timestamp) -> records.add(toRecord(recordId, timestamp)));
+        return records;
+    }
+
+    /**
+     * Validate identifiers and check the database is reachable, so failures are reported with an error status
+     * before a streamed response starts
+     *
+     * @param identifiers
+     */
+    public void checkIds(final String[] identifiers) throws ArchiveStatusException {
         final List<String> errors = new ArrayList<>();
+        if (identifiers == null || Arrays.stream(identifiers).anyMatch(e -> e == null || e.isEmpty())) {
+            errors.add("identifiers must be an array of sfids");
+        } else {
+            try (final Connection connection = dataSource.getConnection()) {
+                if (!connection.isValid(CONNECTION_CHECK_TIMEOUT)) {
+                    errors.add("database connection is not available");
+                }
+            } catch (Exception e) {
+                errors.add(e.getMessage());
+            }
+        }
 
-        final List<Map<String, Object>> records = new ArrayList<>();
+        if (!errors.isEmpty()) {
+            throw new ArchiveStatusException(errors);
+        }
+    }
 
+    /**
+     * Write archive statuses of the identifiers to the stream as json object with records array and errors array.
+     * Rows are written straight from the database cursor, so neither the response nor its records are held in
+     * memory. Errors which happen after the response started are reported in the errors array
+     *
+     * @param identifiers  identifiers checked by {@link #checkIds(String[])}
+     * @param outputStream
+     */
+    public void writeByIds(final String[] identifiers, final OutputStream outputStream) throws IOException {
+        final JsonWriter writer = new JsonWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        final List<String> errors = new ArrayList<>();
+        writer.beginObject();
+        writer.name("records").beginArray();
         try {
-            final String questionMarks = String.join(", ", Collections.nCopies(identifiers.length, "?"));
-            try (final Connection connection = dataSource.getConnection();
-                 final PreparedStatement statement = connection.prepareStatement(
-                         String.format(SELECT_ROW_STATEMENT, ARCHIVE_TABLE_NAME, questionMarks))) {
-                for (int i = 0; i < identifiers.length; i++) {
-                    statement.setString(i + 1, identifiers[i]);
+            lookup(identifiers, (recordId, timestamp) -> {
+                writer.beginObject();
+                writer.name(ColumnSelector.RECORD_ID.resultColumnName).value(recordId);
+                if (timestamp != null) {
+                    writer.name(ColumnSelector.TIMESTAMP.resultColumnName).value(timestamp);
                 }
+                writer.endObject();
+            });
+        } catch (ArchiveStatusException e) {
+            errors.addAll(e.getErrors());
+        }
+        writer.endArray();
+        writer.name("errors").beginArray();
+        for (String error : errors) {
+            writer.value(error);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
 
-                final ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    final Map<String, Object> record = new HashMap<>();
-                    record.put(ColumnSelector.RECORD_ID.resultColumnName,
-                            resultSet.getString(ColumnSelector.RECORD_ID.columnName));
-                    record.put(ColumnSelector.TIMESTAMP.resultColumnName,
-                            Optional.ofNullable(resultSet.getTimestamp(ColumnSelector.TIMESTAMP.columnName))
-                                    .map(Timestamp::getTime).orElse(null));
-
-                    records.add(record);
+    /**
+     * Look up statuses of the identifiers, each found identifier is handed to the handler once. Identifiers which
+     * aren't cached are sorted, so loaded rows are matched to them by binary search and marked in a bit set
+     */
+    private void lookup(final String[] identifiers, final StatusHandler handler) throws ArchiveStatusException {
+        final List<String> errors = new ArrayList<>();
+        try {
+            final String[] uncached = findUncached(identifiers, handler);
+            if (uncached.length > 0) {
+                final long loadGeneration = archiveStatusCacheService.getGeneration();
+                final BitSet found = new BitSet(uncached.length);
+                final StatusHandler loadHandler = (recordId, timestamp) -> {
+                    final int index = Arrays.binarySearch(uncached, recordId);
+                    if (index >= 0 && !found.get(index)) {
+                        found.set(index);
+                        archiveStatusCacheService.put(recordId, timestamp, loadGeneration);
+                        handler.accept(recordId, timestamp);
+                    }
+                };
+                // sfids which are definitely not in the plan table skip the database
+                load(Arrays.stream(uncached).filter(archiveStatusFilterService::mightContain).toArray(String[]::new),
+                        loadHandler);
+                if (!coldTierService.isEmpty()) {
+                    findInColdTier(uncached, found, loadHandler);
+                }
+                if (archiveStatusCacheService.isListening()) {
+                    for (int i = found.nextClearBit(0); i < uncached.length; i = found.nextClearBit(i + 1)) {
+                        archiveStatusCacheService.putUnknown(uncached[i], loadGeneration);
+                    }
                 }
             }
+        } catch (ArchiveStatusException e) {
+            errors.addAll(e.getErrors());
         } catch (Exception e) {
             errors.add(e.getMessage());
         }
@@ -64,8 +204,189 @@ public class ArchiveStatusService {
         if (!errors.isEmpty()) {
             throw new ArchiveStatusException(errors);
         }
+    }
 
-        return records;
+    /**
+     * Hand cached statuses to the handler and collect the identifiers which aren't cached
+     *
+     * @return sorted distinct identifiers which aren't cached
+     */
+    private String[] findUncached(final String[] identifiers, final StatusHandler handler) throws Exception {
+        final String[] uncached = new String[identifiers.length];
+        int count = 0;
+        for (String identifier : identifiers) {
+            final ArchiveStatusCacheService.CachedStatus cached = archiveStatusCacheService.get(identifier);
+            if (cached == null) {
+                uncached[count++] = identifier;
+            } else if (cached.isKnown()) {
+                handler.accept(identifier, cached.getTimestamp());
+            }
+        }
+        Arrays.sort(uncached, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || !uncached[i].equals(uncached[distinct - 1])) {
+                uncached[distinct++] = uncached[i];
+            }
+        }
+        return distinct == uncached.length ? uncached : Arrays.copyOf(uncached, distinct);
+    }
+
+    private Map<String, Object> toRecord(final String recordId, final Long timestamp) {
+        final Map<String, Object> record = new HashMap<>();
+        record.put(ColumnSelector.RECORD_ID.resultColumnName, recordId);
+        record.put(ColumnSelector.TIMESTAMP.resultColumnName, timestamp);
+        return record;
+    }
+
+    /**
+     * Load statuses of the identifiers from the database. Chunks are looked up in parallel, each on its own pooled
+     * connection, and their rows are handed over through a bounded queue
+     */
+    private void load(final String[] identifiers, final StatusHandler handler) throws Exception {
+        if (identifiers.length == 0) {
+            return;
+        }
+        if (identifiers.length <= chunkSize) {
+            loadChunk(identifiers, handler);
+            return;
+        }
+        final BlockingQueue<LoadedRow> rows = new ArrayBlockingQueue<>(fetchSize);
+        final List<Future<?>> chunks = new ArrayList<>();
+        final List<String> errors = new CopyOnWriteArrayList<>();
+        try {
+            for (int i = 0; i < identifiers.length; i += chunkSize) {
+                final String[] chunk = Arrays.copyOfRange(identifiers, i, Math.min(i + chunkSize, identifiers.length));
+                chunks.add(lookupExecutor.submit(() -> {
+                    try {
+                        loadChunk(chunk, (recordId, timestamp) -> rows.put(new LoadedRow(recordId, timestamp)));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        errors.add(e.getMessage());
+                    } finally {
+                        try {
+                            rows.put(CHUNK_DONE);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            int done = 0;
+            while (done < chunks.size()) {
+                final LoadedRow row = rows.take();
+                if (row == CHUNK_DONE) {
+                    done++;
+                } else if (errors.isEmpty()) {
+                    handler.accept(row.recordId, row.timestamp);
+                }
+            }
+        } finally {
+            // a failed consumer leaves producers blocked on the queue
+            chunks.forEach(e -> e.cancel(true));
+        }
+        if (!errors.isEmpty()) {
+            throw new ArchiveStatusException(errors);
+        }
+    }
+
+    /**
+     * Look up a chunk of identifiers with a single array bind, large chunks are copied into a temporary table
+     * which is joined instead. Rows are read through a cursor
+     */
+    private void loadChunk(final String[] identifiers, final StatusHandler handler) throws Exception {
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                final PreparedStatement statement;
+                if (identifiers.length >= copyThreshold) {
+                    copyIdentifiers(connection, identifiers);
+                    statement = connection.prepareStatement(String.format(SELECT_COPIED_ROWS_STATEMENT,
+                            ARCHIVE_TABLE_NAME, IDENTIFIERS_TABLE_NAME));
+                } else {
+                    statement = connection.prepareStatement(String.format(SELECT_ROW_STATEMENT, ARCHIVE_TABLE_NAME));
+                    statement.setArray(1, connection.createArrayOf("varchar", identifiers));
+                }
+                statement.setFetchSize(fetchSize);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        final Timestamp timestamp = resultSet.getTimestamp(ColumnSelector.TIMESTAMP.columnName);
+                        handler.accept(resultSet.getString(ColumnSelector.RECORD_ID.columnName),
+                                timestamp != null ? timestamp.getTime() : null);
+                    }
+                } finally {
+                    statement.close();
+                }
+            } finally {
+                connection.rollback();
+            }
+        }
+    }
+
+    private void copyIdentifiers(final Connection connection, final String[] identifiers) throws Exception {
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute(String.format(CREATE_IDENTIFIERS_TABLE_STATEMENT, IDENTIFIERS_TABLE_NAME));
+        }
+        final StringBuilder rows = new StringBuilder();
+        for (String identifier : identifiers) {
+            rows.append(escapeCopyText(identifier)).append('\n');
+        }
+        connection.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                String.format(COPY_IDENTIFIERS_STATEMENT, IDENTIFIERS_TABLE_NAME), new StringReader(rows.toString()));
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute("analyze " + IDENTIFIERS_TABLE_NAME);
+        }
+    }
+
+    private String escapeCopyText(final String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+    }
+
+    @PostConstruct
+    public void init() {
+        lookupExecutor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        lookupExecutor.shutdownNow();
+    }
+
+    /**
+     * Look up identifiers which were not found in the database among plan rows copied to the cold tier
+     */
+    private void findInColdTier(final String[] identifiers, final BitSet found, final StatusHandler handler)
+            throws Exception {
+        final Set<String> missing = new HashSet<>();
+        for (int i = found.nextClearBit(0); i < identifiers.length; i = found.nextClearBit(i + 1)) {
+            missing.add(identifiers[i]);
+        }
+        for (Map<String, Object> row : coldTierService.findBySfids(ARCHIVE_TABLE_NAME, missing)) {
+            final String timestamp = (String) row.get(ColumnSelector.TIMESTAMP.columnName);
+            handler.accept((String) row.get(ColumnSelector.RECORD_ID.columnName),
+                    timestamp != null ? Timestamp.valueOf(timestamp).getTime() : null);
+        }
+    }
+
+    /**
+     * Row handed over from a chunk lookup, {@link #CHUNK_DONE} marks the end of a chunk
+     */
+    private static class LoadedRow {
+
+        private final String recordId;
+        private final Long timestamp;
+
+        private LoadedRow(String recordId, Long timestamp) {
+            this.recordId = recordId;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private interface StatusHandler {
+
+        void accept(String recordId, Long timestamp) throws Exception;
     }
 
     private enum ColumnSelector {
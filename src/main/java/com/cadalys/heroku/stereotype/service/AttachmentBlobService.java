@@ -0,0 +1,409 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.exception.ArchiveException;
+import com.cadalys.heroku.tier.SegmentMeta;
+import com.cadalys.heroku.utils.DBUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.largeobject.LargeObject;
+import org.postgresql.largeobject.LargeObjectManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Content addressed store of archived attachment bodies. A trigger on the attachment archive table replaces the
+ * body of every archived row by the sha256 hash of its content and keeps the content once per hash as a large
+ * object, so the same file archived many times takes the space of one copy. Large objects are used rather than
+ * local files, the dyno file system doesn't survive restarts.
+ * <p/>
+ * Rows archived before the store was enabled are moved to it in batches, blobs no longer referenced by the
+ * archive table or the cold tier are removed by the same scheduled job.
+ */
+@Service
+public class AttachmentBlobService {
+
+    public static final String BLOB_TABLE_NAME = "cadarch__blob";
+    public static final String BODY_HASH_COLUMN = "body_hash";
+    public static final String ATTACHMENT_TABLE_NAME = "attachment";
+
+    private static final String ARCHIVE_TABLE_NAME = ArchiveService.ARCHIVE_TABLE_PREFIX + ATTACHMENT_TABLE_NAME;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final String COLUMN_TYPE_STATEMENT =
+            "select format_type(atttypid, atttypmod) from pg_attribute where attrelid = to_regclass(?) " +
+                    "and attname = ? and attnum > 0 and not attisdropped";
+
+    private static final String BODY_STATEMENT =
+            "select a." + BODY_HASH_COLUMN + ", b.lo, b.size from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    ARCHIVE_TABLE_NAME + " a left join " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    BLOB_TABLE_NAME + " b on b.hash = a." + BODY_HASH_COLUMN + " where a.sfid = ?";
+
+    private static final String INLINE_BODY_STATEMENT =
+            "select %1$s from " + DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_TABLE_NAME + " where sfid = ?";
+
+    private static final String EXTERNALIZE_BATCH_STATEMENT =
+            "update " + DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_TABLE_NAME + " set " + BODY_HASH_COLUMN +
+                    " = " + DataSourceConfiguration.SCHEMA_NAME + ".cadarch_store_blob(%2$s), %1$s = null " +
+                    "where sfid in (select sfid from " + DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_TABLE_NAME +
+                    " where %1$s is not null limit ?)";
+
+    private static final String ORPHAN_CANDIDATES_STATEMENT =
+            "select b.hash from " + DataSourceConfiguration.SCHEMA_NAME + "." + BLOB_TABLE_NAME + " b " +
+                    "where b.created_at < now() - interval '1 hour' and not exists(select 1 from " +
+                    DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_TABLE_NAME + " a where a." + BODY_HASH_COLUMN +
+                    " = b.hash) limit ?";
+
+    private static final String LOCK_BLOBS_STATEMENT =
+            "select hash from " + DataSourceConfiguration.SCHEMA_NAME + "." + BLOB_TABLE_NAME +
+                    " where hash = any(?) for update skip locked";
+
+    // runs as its own statement after the blob rows are locked, so rows referencing the blobs committed in
+    // between are visible to the check
+    private static final String UNREFERENCED_BLOBS_STATEMENT =
+            "select h from unnest(?::varchar[]) h where not exists(select 1 from " +
+                    DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_TABLE_NAME + " a where a." + BODY_HASH_COLUMN +
+                    " = h)";
+
+    private static final String DELETE_BLOBS_STATEMENT =
+            "with deleted as (delete from " + DataSourceConfiguration.SCHEMA_NAME + "." + BLOB_TABLE_NAME + " b " +
+                    "where b.hash = any(?) and not exists(select 1 from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    ARCHIVE_TABLE_NAME + " a where a." + BODY_HASH_COLUMN + " = b.hash) returning b.hash, b.lo) " +
+                    "select hash, lo_unlink(lo) from deleted";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ColdTierService coldTierService;
+
+    @Value("${archive.blob.enabled:true}")
+    private boolean enabled;
+
+    @Value("${archive.blob.column:body}")
+    private String bodyColumn;
+
+    @Value("${archive.blob.batch-size:500}")
+    private int batchSize;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getBodyColumn() {
+        return bodyColumn;
+    }
+
+    /**
+     * Write body of the archived attachment to the stream. Blob content is read in chunks from the large object,
+     * bodies which aren't moved to the store yet are read from the archive row
+     *
+     * @param sfid
+     * @param outputStream
+     */
+    public void writeBody(String sfid, OutputStream outputStream) throws IOException {
+        try (final Connection connection = dataSource.getConnection()) {
+            // large objects can only be read inside a transaction
+            connection.setAutoCommit(false);
+            try {
+                final BodyReference reference = findBody(connection, sfid);
+                if (reference.lo != null) {
+                    final LargeObjectManager manager = connection.unwrap(PGConnection.class).getLargeObjectAPI();
+                    final LargeObject largeObject = manager.open(reference.lo, LargeObjectManager.READ);
+                    try (final InputStream inputStream = largeObject.getInputStream()) {
+                        copy(inputStream, outputStream);
+                    } finally {
+                        largeObject.close();
+                    }
+                } else {
+                    writeInlineBody(connection, sfid, outputStream);
+                }
+            } finally {
+                connection.rollback();
+            }
+        } catch (IOException | ArchiveException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Check that the archived attachment exists and has a body, so missing bodies are reported before the
+     * response is committed
+     *
+     * @param sfid
+     */
+    public void checkBody(String sfid) {
+        final List<String> errors = new ArrayList<>();
+        try (final Connection connection = dataSource.getConnection()) {
+            findBody(connection, sfid);
+        } catch (ArchiveException e) {
+            throw e;
+        } catch (Exception e) {
+            errors.add(e.getMessage());
+        }
+        if (!errors.isEmpty()) {
+            throw new ArchiveException(errors);
+        }
+    }
+
+    /**
+     * Expression which reads the body back from the blob store when archived attachments are restored
+     *
+     * @param connection
+     * @param archiveColumns columns of the attachment archive table
+     * @return select expression of the body column
+     */
+    public String getRestoreExpression(Connection connection, List<String> archiveColumns) throws Exception {
+        if (!archiveColumns.contains(BODY_HASH_COLUMN)) {
+            return bodyColumn;
+        }
+        final String value = "lo_get(b.lo)";
+        final String content = isBinaryBody(connection) ? value : "convert_from(" + value + ", 'UTF8')";
+        return String.format("coalesce(%1$s, (select %2$s from %3$s.%4$s b where b.hash = %5$s))", bodyColumn,
+                content, DataSourceConfiguration.SCHEMA_NAME, BLOB_TABLE_NAME, BODY_HASH_COLUMN);
+    }
+
+    /**
+     * Move bodies archived before the store was enabled to the store and remove blobs which are no longer
+     * referenced
+     */
+    @Scheduled(cron = "${archive.blob.cron:0 0 2 * * *}")
+    public void maintain() {
+        if (!enabled) {
+            return;
+        }
+        try (final Connection connection = dataSource.getConnection()) {
+            if (!isStoreInstalled(connection)) {
+                return;
+            }
+            final long moved = externalizeBodies(connection);
+            final long removed = removeOrphans(connection);
+            if (moved > 0 || removed > 0) {
+                logger.info("moved {} attachment bodies to the blob store, removed {} unreferenced blobs", moved,
+                        removed);
+            }
+        } catch (Exception e) {
+            logger.error("Error maintaining attachment blob store", e);
+        }
+    }
+
+    private long externalizeBodies(Connection connection) throws Exception {
+        final String sql = String.format(EXTERNALIZE_BATCH_STATEMENT, bodyColumn,
+                DBUtils.getBlobContentExpression(bodyColumn, isBinaryBody(connection)));
+        long moved = 0;
+        int updated;
+        do {
+            try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setInt(1, batchSize);
+                updated = statement.executeUpdate();
+            }
+            moved += updated;
+        } while (updated > 0);
+        return moved;
+    }
+
+    /**
+     * Remove unreferenced blobs of a batch of candidates in one transaction. The cold tier is read before the
+     * candidates are locked, the lock blocks new references from archive inserts. Rows referencing them are then
+     * checked in the database, and only segments published since the cold tier was read are checked again, as
+     * they may hold rows the cold tier moved out of the database in between
+     */
+    private long removeOrphans(Connection connection) throws Exception {
+        final List<String> candidates = new ArrayList<>();
+        try (final PreparedStatement statement = connection.prepareStatement(ORPHAN_CANDIDATES_STATEMENT)) {
+            statement.setInt(1, batchSize);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    candidates.add(resultSet.getString(1));
+                }
+            }
+        }
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        final Set<String> scannedSegments = new HashSet<>();
+        final Set<String> coldReferences = findColdTierReferences(meta -> scannedSegments.add(meta.getName()));
+        long removed = 0;
+        connection.setAutoCommit(false);
+        try {
+            // blobs being referenced by a running archive transaction are locked and left for the next run
+            final List<String> locked = selectHashes(connection, LOCK_BLOBS_STATEMENT, candidates);
+            final List<String> unreferenced = selectHashes(connection, UNREFERENCED_BLOBS_STATEMENT, locked);
+            if (!unreferenced.isEmpty()) {
+                coldReferences.addAll(findColdTierReferences(meta -> !scannedSegments.contains(meta.getName())));
+                unreferenced.removeIf(coldReferences::contains);
+            }
+            if (!unreferenced.isEmpty()) {
+                removed = selectHashes(connection, DELETE_BLOBS_STATEMENT, unreferenced).size();
+            }
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        return removed;
+    }
+
+    private List<String> selectHashes(Connection connection, String sql, List<String> hashes) throws Exception {
+        final List<String> selected = new ArrayList<>();
+        if (hashes.isEmpty()) {
+            return selected;
+        }
+        try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setArray(1, connection.createArrayOf("varchar", hashes.toArray()));
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    selected.add(resultSet.getString(1));
+                }
+            }
+        }
+        return selected;
+    }
+
+    private Set<String> findColdTierReferences(Predicate<SegmentMeta> segmentFilter) {
+        final Set<String> hashes = new HashSet<>();
+        if (coldTierService.isEmpty()) {
+            return hashes;
+        }
+        coldTierService.scan(ARCHIVE_TABLE_NAME, segmentFilter, Collections.singleton(BODY_HASH_COLUMN), row -> {
+            final Object hash = row.get(BODY_HASH_COLUMN);
+            if (hash != null) {
+                hashes.add(hash.toString());
+            }
+            return true;
+        });
+        return hashes;
+    }
+
+    private BodyReference findBody(Connection connection, String sfid) throws Exception {
+        final boolean installed = isStoreInstalled(connection);
+        try (final PreparedStatement statement = connection.prepareStatement(installed ? BODY_STATEMENT :
+                String.format(INLINE_BODY_STATEMENT, "null, null, null"))) {
+            statement.setString(1, sfid);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new ArchiveException(Collections.singletonList(
+                            String.format("archived attachment %s doesn't exists", sfid)));
+                }
+                final String hash = resultSet.getString(1);
+                final long lo = resultSet.getLong(2);
+                if (hash != null && resultSet.wasNull()) {
+                    throw new ArchiveException(Collections.singletonList(
+                            String.format("body %s of archived attachment %s is missing in the blob store", hash,
+                                    sfid)));
+                }
+                return new BodyReference(hash != null ? lo : null);
+            }
+        }
+    }
+
+    private void writeInlineBody(Connection connection, String sfid, OutputStream outputStream) throws Exception {
+        final String sql = String.format(INLINE_BODY_STATEMENT,
+                DBUtils.getBlobContentExpression(bodyColumn, isBinaryBody(connection)));
+        try (final PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, sfid);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new ArchiveException(Collections.singletonList(
+                            String.format("archived attachment %s doesn't exists", sfid)));
+                }
+                try (final InputStream inputStream = resultSet.getBinaryStream(1)) {
+                    if (inputStream != null) {
+                        copy(inputStream, outputStream);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isStoreInstalled(Connection connection) throws Exception {
+        try (final PreparedStatement statement = connection.prepareStatement(COLUMN_TYPE_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_TABLE_NAME);
+            statement.setString(2, BODY_HASH_COLUMN);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    private boolean isBinaryBody(Connection connection) throws Exception {
+        try (final PreparedStatement statement = connection.prepareStatement(COLUMN_TYPE_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + ARCHIVE_TABLE_NAME);
+            statement.setString(2, bodyColumn);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new ArchiveException(Collections.singletonList(
+                            String.format("%s has no column %s", ARCHIVE_TABLE_NAME, bodyColumn)));
+                }
+                return resultSet.getString(1).equals("bytea");
+            }
+        }
+    }
+
+    private void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        final byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, read);
+        }
+        outputStream.flush();
+    }
+
+    private static class BodyReference {
+
+        private final Long lo;
+
+        private BodyReference(Long lo) {
+            this.lo = lo;
+        }
+    }
+}
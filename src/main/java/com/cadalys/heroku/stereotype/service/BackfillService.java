@@ -0,0 +1,584 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.exception.ArchiveException;
+import com.cadalys.heroku.utils.DBUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Archives rows which already exist in source tables. Rows planned for archiving are split into sfid ranges,
+ * every range is copied to the archive table with COPY and deleted from the source table in one transaction.
+ * <p/>
+ * Rows of a range are streamed with COPY TO from a second connection which shares the snapshot of the chunk
+ * transaction, piped into COPY FROM of a temporary table and inserted into the archive table with
+ * ON CONFLICT DO NOTHING, so rows archived earlier don't fail the chunk.
+ * <p/>
+ * Job and chunk state is kept in the database and chunks are claimed with FOR UPDATE SKIP LOCKED, so several dynos
+ * may work on the same job. Running jobs are owned by the dyno which started them and it keeps their heartbeat
+ * fresh; jobs whose owner stopped heartbeating are resumed on startup from their remaining chunks, failed jobs are
+ * resumed only on request.
+ */
+@Service
+public class BackfillService {
+
+    public static final String JOB_TABLE_NAME = "cadarch__backfill_job";
+    public static final String CHUNK_TABLE_NAME = "cadarch__backfill_chunk";
+
+    private static final String STATUS_RUNNING = "RUNNING";
+    private static final String STATUS_DONE = "DONE";
+    private static final String STATUS_FAILED = "FAILED";
+
+    private static final String SERIALIZATION_FAILURE = "40001";
+
+    private static final String JOB_TABLES_STATEMENT =
+            "CREATE TABLE IF NOT EXISTS " + DataSourceConfiguration.SCHEMA_NAME + "." + JOB_TABLE_NAME + " (" +
+                    "id bigserial PRIMARY KEY, object_name varchar(255) NOT NULL, status varchar(16) NOT NULL, " +
+                    "rows_copied bigint NOT NULL DEFAULT 0, started_at timestamptz NOT NULL DEFAULT now(), " +
+                    "finished_at timestamptz, error text, owner varchar(255), " +
+                    "heartbeat_at timestamptz NOT NULL DEFAULT now()); " +
+                    "ALTER TABLE " + DataSourceConfiguration.SCHEMA_NAME + "." + JOB_TABLE_NAME +
+                    " ADD COLUMN IF NOT EXISTS owner varchar(255), " +
+                    "ADD COLUMN IF NOT EXISTS heartbeat_at timestamptz NOT NULL DEFAULT now(); " +
+                    "CREATE TABLE IF NOT EXISTS " + DataSourceConfiguration.SCHEMA_NAME + "." + CHUNK_TABLE_NAME + " (" +
+                    "job_id bigint NOT NULL, chunk_no integer NOT NULL, lower_sfid varchar(18) NOT NULL, " +
+                    "upper_sfid varchar(18) NOT NULL, done boolean NOT NULL DEFAULT false, rows_copied bigint, " +
+                    "PRIMARY KEY (job_id, chunk_no))";
+
+    private static final String INSERT_JOB_STATEMENT =
+            "insert into " + DataSourceConfiguration.SCHEMA_NAME + "." + JOB_TABLE_NAME +
+                    " (object_name, status, owner) values (?, '" + STATUS_RUNNING + "', ?) returning id";
+
+    private static final String INSERT_CHUNKS_STATEMENT =
+            "insert into " + DataSourceConfiguration.SCHEMA_NAME + "." + CHUNK_TABLE_NAME +
+                    " (job_id, chunk_no, lower_sfid, upper_sfid) select ?, n, min(sfid), max(sfid) from " +
+                    "(select o.sfid, (row_number() over (order by o.sfid) - 1) / ? as n from " +
+                    DataSourceConfiguration.SCHEMA_NAME + ".%1$s o where o.sfid is not null and %2$s) x group by n";
+
+    private static final String RESUME_JOBS_STATEMENT =
+            "update " + DataSourceConfiguration.SCHEMA_NAME + "." + JOB_TABLE_NAME +
+                    " set owner = ?, heartbeat_at = now() where status = '" + STATUS_RUNNING +
+                    "' and heartbeat_at < now() - ? * interval '1 millisecond' returning id, object_name";
+
+    private static final String RESUME_JOB_STATEMENT =
+            "update " + DataSourceConfiguration.SCHEMA_NAME + "." + JOB_TABLE_NAME + " set status = '" +
+                    STATUS_RUNNING + "', finished_at = null, error = null, owner = ?, heartbeat_at = now() " +
+                    "where id = ? and status = '" + STATUS_FAILED + "' returning object_name";
+
+    private static final String HEARTBEAT_STATEMENT =
+            "update " + DataSourceConfiguration.SCHEMA_NAME + "." + JOB_TABLE_NAME +
+                    " set heartbeat_at = now() where owner = ? and status = '" + STATUS_RUNNING + "'";
+
+    private static final String JOB_STATUS_STATEMENT =
+            "select j.object_name, j.status, j.rows_copied, j.started_at, j.finished_at, j.error, " +
+                    "extract(epoch from coalesce(j.finished_at, now()) - j.started_at) as elapsed, " +
+                    "(select count(*) from " + DataSourceConfiguration.SCHEMA_NAME + "." + CHUNK_TABLE_NAME +
+                    " c where c.job_id = j.id) as chunks, (select count(*) from " +
+                    DataSourceConfiguration.SCHEMA_NAME + "." + CHUNK_TABLE_NAME +
+                    " c where c.job_id = j.id and c.done) as chunks_done from " +
+                    DataSourceConfiguration.SCHEMA_NAME + "." + JOB_TABLE_NAME + " j where j.id = ?";
+
+    private static final String CLAIM_CHUNK_STATEMENT =
+            "select chunk_no, lower_sfid, upper_sfid from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    CHUNK_TABLE_NAME + " where job_id = ? and not done order by chunk_no limit 1 " +
+                    "for update skip locked";
+
+    private static final String COMPLETE_CHUNK_STATEMENT =
+            "update " + DataSourceConfiguration.SCHEMA_NAME + "." + CHUNK_TABLE_NAME +
+                    " set done = true, rows_copied = ? where job_id = ? and chunk_no = ?; " +
+                    "update " + DataSourceConfiguration.SCHEMA_NAME + "." + JOB_TABLE_NAME +
+                    " set rows_copied = rows_copied + ? where id = ?";
+
+    private static final String FINISH_JOB_STATEMENT =
+            "update " + DataSourceConfiguration.SCHEMA_NAME + "." + JOB_TABLE_NAME +
+                    " set status = ?, finished_at = now(), error = ? where id = ? and status = '" + STATUS_RUNNING +
+                    "' and not exists(select 1 from " + DataSourceConfiguration.SCHEMA_NAME + "." + CHUNK_TABLE_NAME +
+                    " where job_id = ? and not done and ? = '" + STATUS_DONE + "')";
+
+    private static final String COLUMNS_STATEMENT =
+            "select attname from pg_attribute where attrelid = ?::regclass and attnum > 0 and not attisdropped " +
+                    "order by attnum";
+
+    private static final String COPY_OUT_STATEMENT =
+            "COPY (SELECT %1$s FROM " + DataSourceConfiguration.SCHEMA_NAME + ".%2$s o WHERE o.sfid BETWEEN %3$s " +
+                    "AND %4$s AND %5$s) TO STDOUT (FORMAT %6$s)";
+
+    private static final String ROWS_TABLE_NAME = "cadarch_backfill_rows";
+
+    private static final String CREATE_ROWS_TABLE_STATEMENT =
+            "CREATE TEMPORARY TABLE " + ROWS_TABLE_NAME + " (LIKE " + DataSourceConfiguration.SCHEMA_NAME +
+                    ".%1$s) ON COMMIT DROP";
+
+    private static final String COPY_IN_STATEMENT =
+            "COPY " + ROWS_TABLE_NAME + "(%1$s) FROM STDIN (FORMAT %2$s)";
+
+    private static final String INSERT_ROWS_STATEMENT =
+            "INSERT INTO " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s(%2$s) SELECT %2$s FROM " + ROWS_TABLE_NAME +
+                    " ON CONFLICT DO NOTHING";
+
+    private static final String DELETE_CHUNK_STATEMENT =
+            "delete from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s o using " + ROWS_TABLE_NAME +
+                    " r where o.sfid = r.sfid";
+
+    private static final int PIPE_SIZE = 1 << 16;
+
+    private static final String DYNO_VARIABLE = "DYNO";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Identifies this dyno as the owner of the jobs it runs
+     */
+    private final String owner = Optional.ofNullable(System.getenv(DYNO_VARIABLE)).orElse("local") + ":" +
+            UUID.randomUUID();
+
+    private final Set<Long> runningJobs = ConcurrentHashMap.newKeySet();
+
+    private ExecutorService executor;
+
+    private ExecutorService copyExecutor;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${archive.backfill.workers:4}")
+    private int workers;
+
+    @Value("${archive.backfill.chunk-size:10000}")
+    private int chunkSize;
+
+    @Value("${archive.backfill.format:binary}")
+    private String copyFormat;
+
+    @Value("${archive.backfill.stale-timeout:120000}")
+    private long staleTimeout;
+
+    /**
+     * Start backfill jobs of specified objects
+     *
+     * @param objects array of object(table name)
+     * @return identifiers of started jobs
+     */
+    public List<Long> startBackfill(String[] objects) {
+        final List<String> errors = new ArrayList<>();
+        final List<Long> jobIds = new ArrayList<>();
+
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute(JOB_TABLES_STATEMENT);
+            }
+            connection.commit();
+
+            for (String objectName : objects) {
+                try {
+                    final long jobId = createJob(connection, objectName);
+                    connection.commit();
+                    jobIds.add(jobId);
+                    submitWorkers(jobId, objectName);
+                } catch (Exception e) {
+                    connection.rollback();
+                    logger.error("Error starting backfill", e);
+                    errors.add(e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            errors.add(e.getMessage());
+        }
+
+        if (!errors.isEmpty()) {
+            throw new ArchiveException(errors);
+        }
+        return jobIds;
+    }
+
+    /**
+     * Get progress of the backfill job
+     *
+     * @param jobId
+     * @return job status, copied rows and throughput in rows per second
+     */
+    public Map<String, Object> getStatus(long jobId) {
+        final Map<String, Object> status = new HashMap<>();
+        try (final Connection connection = dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(JOB_STATUS_STATEMENT)) {
+            statement.setLong(1, jobId);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new ArchiveException(Collections.singletonList(
+                            String.format("backfill job %s doesn't exists", jobId)));
+                }
+                final long rowsCopied = resultSet.getLong("rows_copied");
+                final double elapsed = resultSet.getDouble("elapsed");
+                status.put("id", jobId);
+                status.put("object", resultSet.getString("object_name"));
+                status.put("status", resultSet.getString("status"));
+                status.put("rowsCopied", rowsCopied);
+                status.put("chunks", resultSet.getLong("chunks"));
+                status.put("chunksDone", resultSet.getLong("chunks_done"));
+                status.put("rowsPerSecond", elapsed > 0 ? rowsCopied / elapsed : 0);
+                status.put("startedAt", toTime(resultSet.getTimestamp("started_at")));
+                status.put("finishedAt", toTime(resultSet.getTimestamp("finished_at")));
+                status.put("error", resultSet.getString("error"));
+            }
+        } catch (ArchiveException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ArchiveException(Collections.singletonList(e.getMessage()));
+        }
+        return status;
+    }
+
+    /**
+     * Resume failed backfill job from its remaining chunks
+     *
+     * @param jobId
+     */
+    public void resumeJob(long jobId) {
+        try (final Connection connection = dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(RESUME_JOB_STATEMENT)) {
+            statement.setString(1, owner);
+            statement.setLong(2, jobId);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new ArchiveException(Collections.singletonList(
+                            String.format("backfill job %s doesn't exists or is not failed", jobId)));
+                }
+                logger.info("resuming backfill job {}", jobId);
+                submitWorkers(jobId, resultSet.getString("object_name"));
+            }
+        } catch (ArchiveException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ArchiveException(Collections.singletonList(e.getMessage()));
+        }
+    }
+
+    /**
+     * Resumes running jobs whose owner stopped heartbeating, e.g. was restarted, from their remaining chunks.
+     * Jobs still owned by a live dyno and failed jobs are left alone
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeJobs() {
+        try (final Connection connection = dataSource.getConnection()) {
+            if (!tableExists(connection, JOB_TABLE_NAME)) {
+                return;
+            }
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute(JOB_TABLES_STATEMENT);
+            }
+            try (final PreparedStatement statement = connection.prepareStatement(RESUME_JOBS_STATEMENT)) {
+                statement.setString(1, owner);
+                statement.setLong(2, staleTimeout);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        logger.info("resuming backfill job {}", resultSet.getLong("id"));
+                        submitWorkers(resultSet.getLong("id"), resultSet.getString("object_name"));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error resuming backfill jobs", e);
+        }
+    }
+
+    /**
+     * Keeps heartbeat of the jobs running on this dyno fresh, so other dynos don't take them over on startup
+     */
+    @Scheduled(fixedDelayString = "${archive.backfill.heartbeat-interval:30000}")
+    public void heartbeat() {
+        if (runningJobs.isEmpty()) {
+            return;
+        }
+        try (final Connection connection = dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(HEARTBEAT_STATEMENT)) {
+            statement.setString(1, owner);
+            statement.executeUpdate();
+        } catch (Exception e) {
+            logger.error("Error updating backfill heartbeat", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            copyExecutor.shutdownNow();
+        }
+    }
+
+    private long createJob(Connection connection, String objectName) throws Exception {
+        final long jobId;
+        try (final PreparedStatement statement = connection.prepareStatement(INSERT_JOB_STATEMENT)) {
+            statement.setString(1, objectName);
+            statement.setString(2, owner);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                jobId = resultSet.getLong(1);
+            }
+        }
+        try (final PreparedStatement statement = connection.prepareStatement(String.format(INSERT_CHUNKS_STATEMENT,
+                objectName, DBUtils.getArchivePlanCondition(DataSourceConfiguration.SCHEMA_NAME, objectName, "o")))) {
+            statement.setLong(1, jobId);
+            statement.setInt(2, chunkSize);
+            logger.info("backfill job {} of {} split into {} chunks", jobId, objectName, statement.executeUpdate());
+        }
+        return jobId;
+    }
+
+    private synchronized void submitWorkers(long jobId, String objectName) {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(workers);
+            copyExecutor = Executors.newFixedThreadPool(workers);
+        }
+        runningJobs.add(jobId);
+        final AtomicInteger activeWorkers = new AtomicInteger(workers);
+        for (int i = 0; i < workers; i++) {
+            executor.submit(() -> {
+                String error = null;
+                try {
+                    while (processChunk(jobId, objectName)) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.error(String.format("Error in backfill job %s", jobId), e);
+                    error = e.getMessage();
+                }
+                final boolean last = activeWorkers.decrementAndGet() == 0;
+                if (last || error != null) {
+                    finishJob(jobId, error);
+                }
+                if (last) {
+                    runningJobs.remove(jobId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Claims the next chunk of the job, copies its rows to the archive table and deletes them from the source
+     * table in one repeatable read transaction. Rows are read by a second connection in the same snapshot and
+     * streamed through a pipe, they are never buffered as a whole
+     *
+     * @return false when there are no chunks left
+     */
+    private boolean processChunk(long jobId, String objectName) throws Exception {
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try {
+                final int chunkNo;
+                final String lowerSfid;
+                final String upperSfid;
+                try (final PreparedStatement statement = connection.prepareStatement(CLAIM_CHUNK_STATEMENT)) {
+                    statement.setLong(1, jobId);
+                    try (final ResultSet resultSet = statement.executeQuery()) {
+                        if (!resultSet.next()) {
+                            connection.rollback();
+                            return false;
+                        }
+                        chunkNo = resultSet.getInt(1);
+                        lowerSfid = resultSet.getString(2);
+                        upperSfid = resultSet.getString(3);
+                    }
+                }
+
+                final long started = System.currentTimeMillis();
+                final String planCondition = DBUtils.getArchivePlanCondition(DataSourceConfiguration.SCHEMA_NAME,
+                        objectName, "o");
+                final List<String> columns = findColumns(connection, objectName);
+                final CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+
+                final String snapshot;
+                try (final Statement statement = connection.createStatement();
+                     final ResultSet resultSet = statement.executeQuery("select pg_export_snapshot()")) {
+                    resultSet.next();
+                    snapshot = resultSet.getString(1);
+                }
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute(String.format(CREATE_ROWS_TABLE_STATEMENT, objectName));
+                }
+
+                final long copied;
+                try (final PipedInputStream input = new PipedInputStream(PIPE_SIZE)) {
+                    final PipedOutputStream output = new PipedOutputStream(input);
+                    final Future<?> reader = copyExecutor.submit(() -> {
+                        copyOut(snapshot, String.format(COPY_OUT_STATEMENT, DBUtils.buildColumnList(columns, "o"),
+                                objectName, quoteLiteral(lowerSfid), quoteLiteral(upperSfid), planCondition,
+                                copyFormat), output);
+                        return null;
+                    });
+                    try {
+                        copied = copyManager.copyIn(String.format(COPY_IN_STATEMENT,
+                                DBUtils.buildColumnList(columns, null), copyFormat), input);
+                        // a failed reader closes the pipe early, so rows copied so far must not be archived
+                        reader.get();
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    } finally {
+                        reader.cancel(true);
+                    }
+                }
+                try (final Statement statement = connection.createStatement()) {
+                    statement.executeUpdate(String.format(INSERT_ROWS_STATEMENT,
+                            ArchiveService.ARCHIVE_TABLE_PREFIX + objectName,
+                            DBUtils.buildColumnList(columns, null)));
+                }
+
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute("SET LOCAL " + DBUtils.SKIP_ARCHIVE_SETTING + " = 'on'");
+                }
+                try (final Statement statement = connection.createStatement()) {
+                    statement.executeUpdate(String.format(DELETE_CHUNK_STATEMENT, objectName));
+                }
+                try (final PreparedStatement statement = connection.prepareStatement(COMPLETE_CHUNK_STATEMENT)) {
+                    statement.setLong(1, copied);
+                    statement.setLong(2, jobId);
+                    statement.setInt(3, chunkNo);
+                    statement.setLong(4, copied);
+                    statement.setLong(5, jobId);
+                    statement.execute();
+                }
+                connection.commit();
+                logger.info("backfill job {} chunk {}: {} rows in {} ms", jobId, chunkNo, copied,
+                        System.currentTimeMillis() - started);
+                return true;
+            } catch (SQLException e) {
+                connection.rollback();
+                if (SERIALIZATION_FAILURE.equals(e.getSQLState())) {
+                    // rows of the chunk were changed concurrently, the chunk stays unfinished and is claimed again
+                    logger.warn("backfill job {} chunk conflicted with concurrent changes, retrying", jobId);
+                    return true;
+                }
+                throw e;
+            } catch (Exception e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Copy rows out in the exported snapshot of the chunk transaction. The output is closed when done or failed
+     */
+    private void copyOut(String snapshot, String sql, OutputStream output) throws Exception {
+        try (final OutputStream target = output;
+             final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try {
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute("SET TRANSACTION SNAPSHOT " + quoteLiteral(snapshot));
+                }
+                connection.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, target);
+            } finally {
+                connection.rollback();
+            }
+        }
+    }
+
+    private void finishJob(long jobId, String error) {
+        final String status = error == null ? STATUS_DONE : STATUS_FAILED;
+        try (final Connection connection = dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(FINISH_JOB_STATEMENT)) {
+            statement.setString(1, status);
+            statement.setString(2, error);
+            statement.setLong(3, jobId);
+            statement.setLong(4, jobId);
+            statement.setString(5, status);
+            statement.executeUpdate();
+        } catch (Exception e) {
+            logger.error(String.format("Error finishing backfill job %s", jobId), e);
+        }
+    }
+
+    private List<String> findColumns(Connection connection, String objectName) throws Exception {
+        final List<String> columns = new ArrayList<>();
+        try (final PreparedStatement statement = connection.prepareStatement(COLUMNS_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + objectName);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    columns.add(resultSet.getString(1));
+                }
+            }
+        }
+        return columns;
+    }
+
+    private boolean tableExists(Connection connection, String tableName) throws Exception {
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery("select to_regclass('" +
+                     DataSourceConfiguration.SCHEMA_NAME + "." + tableName + "') is not null")) {
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+    }
+
+    private String quoteLiteral(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    private Long toTime(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.getTime();
+    }
+}
@@ -0,0 +1,439 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.tier.SegmentFiles;
+import com.cadalys.heroku.tier.SegmentMeta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Moves old archived rows out of Postgres into compressed columnar segment files and reads them back when
+ * a row is no longer in the database.
+ * <p/>
+ * Partitioned archive tables are tiered partition by partition, once the whole partition is older than the
+ * configured age. Plain archive tables are tiered in sfid ordered chunks of rows archived before the configured
+ * age, rows archived before the archived date column was added fall back to their lastmodifieddate. Segment files are written before the rows are removed, so a failure in between leaves
+ * the rows in both places and database copy wins on reads.
+ * <p/>
+ * Archive plan rows which reference the tiered rows are copied into segments of the plan table as well. They are
+ * kept in Postgres, the copies only answer status lookups of plan rows which were removed from the database later.
+ */
+@Service
+public class ColdTierService {
+
+    private static final String SFID = "sfid";
+
+    private static final String LAST_MODIFIED_DATE = "lastmodifieddate";
+
+    private static final String PLAIN_ARCHIVE_TABLES_STATEMENT =
+            "select c.relname, exists(select 1 from pg_attribute a where a.attrelid = c.oid and a.attname = '" +
+                    LAST_MODIFIED_DATE + "' and not a.attisdropped) from pg_class c join pg_namespace n on " +
+                    "n.oid = c.relnamespace where n.nspname = '" + DataSourceConfiguration.SCHEMA_NAME + "' and " +
+                    "c.relkind = 'r' and not c.relispartition and c.relname like '" +
+                    ArchiveService.ARCHIVE_TABLE_PREFIX.replace("_", "\\_") + "%' and exists(select 1 " +
+                    "from pg_attribute a where a.attrelid = c.oid and a.attname = '" +
+                    ArchiveService.ARCHIVED_DATE_COLUMN + "' and not a.attisdropped)";
+
+    private static final String SELECT_PARTITION_STATEMENT =
+            "select * from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s";
+
+    private static final String SELECT_OLD_ROWS_STATEMENT =
+            "select * from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s where %2$s and " + SFID +
+                    " is not null order by " + SFID + " limit ?";
+
+    private static final String ARCHIVED_BEFORE_CONDITION = ArchiveService.ARCHIVED_DATE_COLUMN + " < ?";
+
+    private static final String ARCHIVED_OR_MODIFIED_BEFORE_CONDITION = "(" + ArchiveService.ARCHIVED_DATE_COLUMN +
+            " < ? or " + ArchiveService.ARCHIVED_DATE_COLUMN + " is null and " + LAST_MODIFIED_DATE + " < ?)";
+
+    private static final String SELECT_PLAN_ROWS_STATEMENT =
+            "select * from " + DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveStatusService.ARCHIVE_TABLE_NAME +
+                    " where LOWER(cadarch__type__c) = LOWER(?) and cadarch__sourceid__c = any(?)";
+
+    private static final String DELETE_ROWS_STATEMENT =
+            "delete from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s where " + SFID + " = any(?)";
+
+    private static final String DROP_PARTITION_STATEMENT =
+            "ALTER TABLE " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s DETACH PARTITION " +
+                    DataSourceConfiguration.SCHEMA_NAME + ".%2$s; DROP TABLE " +
+                    DataSourceConfiguration.SCHEMA_NAME + ".%2$s;";
+
+    private static final int INDEX_CACHE_SIZE = 32;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<String, List<SegmentMeta>> segments = new ConcurrentHashMap<>();
+
+    private final Map<String, String[]> indexCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, String[]>(INDEX_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                    return size() > INDEX_CACHE_SIZE;
+                }
+            });
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ArchivePartitionService archivePartitionService;
+
+    @Value("${archive.tier.enabled:false}")
+    private boolean enabled;
+
+    @Value("${archive.tier.directory:tier}")
+    private String directory;
+
+    @Value("${archive.tier.age-days:90}")
+    private int ageDays;
+
+    @Value("${archive.tier.segment-rows:50000}")
+    private int segmentRows;
+
+    /**
+     * Loads metadata of all complete segments
+     */
+    @PostConstruct
+    public void loadSegments() {
+        final Path root = Paths.get(directory);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        try (final DirectoryStream<Path> tables = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path tableDirectory : tables) {
+                try (final DirectoryStream<Path> metas = Files.newDirectoryStream(tableDirectory,
+                        "*" + SegmentFiles.META_EXTENSION)) {
+                    for (Path metaPath : metas) {
+                        final SegmentMeta meta = SegmentFiles.readMeta(metaPath);
+                        getSegments(meta.getTable()).add(meta);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Error loading cold tier segments", e);
+        }
+        logger.info("loaded cold tier segments of {} tables", segments.size());
+    }
+
+    /**
+     * Moves archived rows older than the configured age to segment files
+     */
+    @Scheduled(cron = "${archive.tier.cron:0 0 3 * * *}")
+    public void tierOldRows() {
+        if (!enabled) {
+            return;
+        }
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            for (String archiveTableName : archivePartitionService.findPartitionedArchiveTables(connection)) {
+                try {
+                    tierPartitions(connection, archiveTableName);
+                } catch (Exception e) {
+                    connection.rollback();
+                    logger.error(String.format("Error moving partitions of %s to cold tier", archiveTableName), e);
+                }
+            }
+            for (Map.Entry<String, Boolean> archiveTable : findPlainArchiveTables(connection).entrySet()) {
+                final String archiveTableName = archiveTable.getKey();
+                try {
+                    tierRows(connection, archiveTableName, archiveTable.getValue());
+                } catch (Exception e) {
+                    connection.rollback();
+                    logger.error(String.format("Error moving rows of %s to cold tier", archiveTableName), e);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error moving archived rows to cold tier", e);
+        }
+    }
+
+    /**
+     * Find rows of the archive table by sfid in the cold tier
+     *
+     * @param archiveTableName
+     * @param sfids
+     * @return found rows as column name to value maps
+     */
+    public List<Map<String, Object>> findBySfids(String archiveTableName, Collection<String> sfids) {
+        final List<Map<String, Object>> rows = new ArrayList<>();
+        final List<SegmentMeta> tableSegments = segments.get(archiveTableName);
+        if (tableSegments == null || sfids.isEmpty()) {
+            return rows;
+        }
+        for (SegmentMeta meta : tableSegments) {
+            final List<String> candidates = sfids.stream().filter(meta::mayContain).collect(Collectors.toList());
+            if (candidates.isEmpty()) {
+                continue;
+            }
+            try {
+                final String[] index = getIndex(meta);
+                final int[] positions = candidates.stream()
+                        .mapToInt(e -> Arrays.binarySearch(index, e)).filter(e -> e >= 0).sorted().toArray();
+                if (positions.length > 0) {
+                    rows.addAll(SegmentFiles.readRows(getTableDirectory(archiveTableName), meta, positions));
+                }
+            } catch (IOException e) {
+                logger.error(String.format("Error reading cold tier segment %s", meta.getName()), e);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Scan cold tier rows of the archive table within the selected segments. Only the requested columns are read
+     * and rows are passed to the handler one by one, so they aren't collected for the whole table
+     *
+     * @param archiveTableName
+     * @param segmentFilter    segments to read, called once for every segment of the table
+     * @param columns          names of the columns to read
+     * @param handler          receives every row as column name to value map, returns false to stop the scan
+     */
+    public void scan(String archiveTableName, Predicate<SegmentMeta> segmentFilter, Collection<String> columns,
+                     Predicate<Map<String, Object>> handler) {
+        final List<SegmentMeta> tableSegments = segments.get(archiveTableName);
+        if (tableSegments == null) {
+            return;
+        }
+        for (SegmentMeta meta : tableSegments) {
+            if (!segmentFilter.test(meta)) {
+                continue;
+            }
+            try {
+                if (!SegmentFiles.scanRows(getTableDirectory(archiveTableName), meta, columns, handler)) {
+                    return;
+                }
+            } catch (IOException e) {
+                logger.error(String.format("Error reading cold tier segment %s", meta.getName()), e);
+            }
+        }
+    }
+
+    /**
+     * Check whether any rows are stored in the cold tier
+     *
+     * @return
+     */
+    public boolean isEmpty() {
+        return segments.isEmpty();
+    }
+
+    private void tierPartitions(Connection connection, String archiveTableName) throws Exception {
+        final YearMonth newestTieredMonth = YearMonth.from(LocalDate.now().minusDays(ageDays)).minusMonths(1);
+        for (String partition : archivePartitionService.findPartitions(connection, archiveTableName)) {
+            final YearMonth partitionMonth = archivePartitionService.getPartitionMonth(partition);
+            if (partitionMonth == null || partitionMonth.isAfter(newestTieredMonth)) {
+                continue;
+            }
+            int tieredRows = 0;
+            try (final Statement statement = connection.createStatement()) {
+                statement.setFetchSize(segmentRows);
+                try (final ResultSet resultSet = statement.executeQuery(
+                        String.format(SELECT_PARTITION_STATEMENT, partition))) {
+                    final String[] columns = getColumns(resultSet);
+                    List<String[]> rows;
+                    while (!(rows = readRows(resultSet, columns.length, segmentRows)).isEmpty()) {
+                        writeSegment(archiveTableName, columns, rows);
+                        writePlanSegment(connection, archiveTableName, getSfids(columns, rows));
+                        tieredRows += rows.size();
+                    }
+                }
+            }
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute(String.format(DROP_PARTITION_STATEMENT, archiveTableName, partition));
+            }
+            connection.commit();
+            logger.info("moved {} rows of partition {} to cold tier", tieredRows, partition);
+        }
+    }
+
+    /**
+     * Move rows of the plain archive table archived before the configured age
+     *
+     * @param connection
+     * @param archiveTableName
+     * @param modifiedFallback whether rows without archived date are tiered by their lastmodifieddate
+     */
+    private void tierRows(Connection connection, String archiveTableName, boolean modifiedFallback)
+            throws Exception {
+        final Timestamp cutoff = Timestamp.valueOf(LocalDate.now().minusDays(ageDays).atStartOfDay());
+        int tieredRows;
+        do {
+            final String[] columns;
+            final List<String[]> rows;
+            try (final PreparedStatement statement = connection.prepareStatement(
+                    String.format(SELECT_OLD_ROWS_STATEMENT, archiveTableName,
+                            modifiedFallback ? ARCHIVED_OR_MODIFIED_BEFORE_CONDITION : ARCHIVED_BEFORE_CONDITION))) {
+                int index = 1;
+                statement.setTimestamp(index++, cutoff);
+                if (modifiedFallback) {
+                    statement.setTimestamp(index++, cutoff);
+                }
+                statement.setInt(index, segmentRows);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    columns = getColumns(resultSet);
+                    rows = readRows(resultSet, columns.length, segmentRows);
+                }
+            }
+            tieredRows = rows.size();
+            if (tieredRows == 0) {
+                connection.commit();
+                break;
+            }
+            writeSegment(archiveTableName, columns, rows);
+            final Object[] sfids = getSfids(columns, rows);
+            writePlanSegment(connection, archiveTableName, sfids);
+
+            try (final PreparedStatement statement = connection.prepareStatement(
+                    String.format(DELETE_ROWS_STATEMENT, archiveTableName))) {
+                statement.setArray(1, connection.createArrayOf("varchar", sfids));
+                statement.executeUpdate();
+            }
+            connection.commit();
+            logger.info("moved {} rows of {} to cold tier", tieredRows, archiveTableName);
+        } while (tieredRows >= segmentRows);
+    }
+
+    private void writeSegment(String archiveTableName, String[] columns, List<String[]> rows) throws IOException {
+        final String name = archiveTableName + "-" + System.currentTimeMillis() + "-" +
+                UUID.randomUUID().toString().substring(0, 8);
+        final SegmentMeta meta = SegmentFiles.write(getTableDirectory(archiveTableName), archiveTableName, name,
+                columns, rows, ArchiveService.ARCHIVED_DATE_COLUMN);
+        getSegments(archiveTableName).add(meta);
+    }
+
+    /**
+     * Copy plan rows referencing the tiered rows into a segment of the plan table
+     */
+    private void writePlanSegment(Connection connection, String archiveTableName, Object[] sfids) throws Exception {
+        final String[] columns;
+        final List<String[]> rows;
+        try (final PreparedStatement statement = connection.prepareStatement(SELECT_PLAN_ROWS_STATEMENT)) {
+            statement.setString(1, archiveTableName.substring(ArchiveService.ARCHIVE_TABLE_PREFIX.length()));
+            statement.setArray(2, connection.createArrayOf("varchar", sfids));
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                columns = getColumns(resultSet);
+                rows = readRows(resultSet, columns.length, Integer.MAX_VALUE);
+            }
+        }
+        if (!rows.isEmpty()) {
+            writeSegment(ArchiveStatusService.ARCHIVE_TABLE_NAME, columns, rows);
+        }
+    }
+
+    private Object[] getSfids(String[] columns, List<String[]> rows) {
+        final int sfidIndex = Arrays.asList(columns).indexOf(SFID);
+        return rows.stream().map(e -> e[sfidIndex]).toArray();
+    }
+
+    private String[] getColumns(ResultSet resultSet) throws Exception {
+        final ResultSetMetaData metaData = resultSet.getMetaData();
+        final String[] columns = new String[metaData.getColumnCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = metaData.getColumnName(i + 1);
+        }
+        return columns;
+    }
+
+    private List<String[]> readRows(ResultSet resultSet, int columnCount, int limit) throws Exception {
+        final List<String[]> rows = new ArrayList<>();
+        while (rows.size() < limit && resultSet.next()) {
+            final String[] row = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                row[i] = resultSet.getString(i + 1);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Find plain archive tables which have the archived date column
+     *
+     * @return whether the table has lastmodifieddate, by table name
+     */
+    private Map<String, Boolean> findPlainArchiveTables(Connection connection) throws Exception {
+        final Map<String, Boolean> tables = new LinkedHashMap<>();
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(PLAIN_ARCHIVE_TABLES_STATEMENT)) {
+            while (resultSet.next()) {
+                tables.put(resultSet.getString(1), resultSet.getBoolean(2));
+            }
+        }
+        connection.commit();
+        return tables;
+    }
+
+    private String[] getIndex(SegmentMeta meta) throws IOException {
+        String[] index = indexCache.get(meta.getName());
+        if (index == null) {
+            index = SegmentFiles.readIndex(getTableDirectory(meta.getTable()), meta);
+            indexCache.put(meta.getName(), index);
+        }
+        return index;
+    }
+
+    private List<SegmentMeta> getSegments(String archiveTableName) {
+        return segments.computeIfAbsent(archiveTableName, e -> new CopyOnWriteArrayList<>());
+    }
+
+    private Path getTableDirectory(String archiveTableName) {
+        return Paths.get(directory, archiveTableName);
+    }
+}
@@ -25,6 +25,8 @@
  */
 package com.cadalys.heroku.stereotype.service;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
@@ -81,4 +83,15 @@ public interface FtsSearchService {
      */
     Map<String,Object> search(final Map<String,Object> request) throws SQLException;
 
+    /**
+     * Same as search but the records are written to the stream as they are read from the database cursor.
+     * A failure after the records started to be written is reported in the error fields of the response
+     *
+     * @param request map created as the resutl of JSON message deserialization
+     * @param outputStream stream the search response is written to
+     * @throws SQLException when the search statement can't be assembled, nothing is written then
+     * @throws IOException
+     */
+    void search(final Map<String,Object> request, final OutputStream outputStream) throws SQLException, IOException;
+
 }
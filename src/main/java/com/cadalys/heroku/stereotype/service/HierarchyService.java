@@ -0,0 +1,307 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.archive.HierarchyNode;
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.exception.ArchiveException;
+import com.cadalys.heroku.utils.DBUtils;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches an archived record together with its archived descendants. The graph is walked level by level, queries
+ * of all objects of a level run in parallel and every record is written to the response as soon as it is read,
+ * with the sfid of its parent record.
+ */
+@Service
+public class HierarchyService {
+
+    private static final String SFID = "sfid";
+
+    private static final String SELECT_RECORDS_STATEMENT =
+            "select a.sfid, a.%2$s::text, row_to_json(a)::text from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    ArchiveService.ARCHIVE_TABLE_PREFIX + "%1$s a where a.%2$s = any(?)";
+
+    private static final String COLUMN_EXISTS_STATEMENT =
+            "select exists(select 1 from pg_attribute where attrelid = to_regclass(?) and attname = ? " +
+                    "and attnum > 0 and not attisdropped)";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${archive.hierarchy.parallelism:4}")
+    private int parallelism;
+
+    @Value("${archive.hierarchy.max-depth:5}")
+    private int maxDepth;
+
+    @Value("${archive.hierarchy.max-records:50000}")
+    private int maxRecords;
+
+    @Value("${archive.hierarchy.fetch-size:500}")
+    private int fetchSize;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Resolve the column linking every node of the graph to its parent, failing on unknown objects or columns
+     * before anything is written
+     *
+     * @param root
+     * @return link column of every node, sfid for the root
+     */
+    public Map<HierarchyNode, String> resolveLinks(HierarchyNode root) {
+        final List<String> errors = new ArrayList<>();
+        final Map<HierarchyNode, String> links = new IdentityHashMap<>();
+        if (root == null || root.getSfid() == null || root.getObject() == null) {
+            throw new ArchiveException(Collections.singletonList("root object and sfid are required"));
+        }
+
+        try (final Connection connection = dataSource.getConnection()) {
+            if (!columnExists(connection, root.getObject(), SFID)) {
+                errors.add(String.format("archive table of object %s doesn't exists", root.getObject()));
+            }
+            links.put(root, SFID);
+            resolveChildLinks(connection, root, 1, links, errors);
+        } catch (Exception e) {
+            errors.add(e.getMessage());
+        }
+
+        if (!errors.isEmpty()) {
+            throw new ArchiveException(errors);
+        }
+        return links;
+    }
+
+    /**
+     * Write the archived subtree of the root as json object with records array and errors array. Errors which
+     * happen after the response started are reported in the errors array
+     *
+     * @param root
+     * @param links        link columns resolved by {@link #resolveLinks(HierarchyNode)}
+     * @param outputStream
+     * @throws IOException
+     */
+    public void writeHierarchy(HierarchyNode root, Map<HierarchyNode, String> links, OutputStream outputStream)
+            throws IOException {
+        final JsonWriter writer = new JsonWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        final List<String> errors = new CopyOnWriteArrayList<>();
+        final AtomicInteger written = new AtomicInteger();
+        // set under the writer lock when the response is closed, fetches still running stop writing then
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final List<Future<List<String>>> futures = new ArrayList<>();
+        writer.beginObject();
+        writer.name("records").beginArray();
+
+        List<Level> level = Collections.singletonList(new Level(root, Collections.singletonList(root.getSfid())));
+        try {
+            while (!level.isEmpty()) {
+                futures.clear();
+                for (Level node : level) {
+                    futures.add(executor.submit(() -> fetch(node, links.get(node.node), writer, written, stopped)));
+                }
+                final List<Level> nextLevel = new ArrayList<>();
+                for (int i = 0; i < futures.size(); i++) {
+                    final List<String> fetched = futures.get(i).get();
+                    // children of the root are looked up even when the root record itself isn't archived
+                    final List<String> sfids = level.get(i).node == root ? level.get(i).parentSfids : fetched;
+                    final HierarchyNode[] children = level.get(i).node.getChildren();
+                    if (children != null && !sfids.isEmpty()) {
+                        for (HierarchyNode child : children) {
+                            nextLevel.add(new Level(child, sfids));
+                        }
+                    }
+                }
+                level = nextLevel;
+            }
+        } catch (ExecutionException e) {
+            logger.error("Error fetching archived hierarchy", e.getCause());
+            errors.add(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errors.add(e.getMessage());
+        }
+        // after a failure the rest of the level is abandoned, queued fetches don't run at all
+        for (Future<List<String>> future : futures) {
+            future.cancel(true);
+        }
+
+        synchronized (writer) {
+            stopped.set(true);
+            writer.endArray();
+            if (written.get() > maxRecords) {
+                errors.add(String.format("hierarchy has more than %d archived records, the rest is left out",
+                        maxRecords));
+            }
+            writer.name("errors").beginArray();
+            for (String error : errors) {
+                writer.value(error);
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Write records of the level and return their sfids
+     */
+    private List<String> fetch(Level level, String linkColumn, JsonWriter writer, AtomicInteger written,
+            AtomicBoolean stopped) throws Exception {
+        final List<String> sfids = new ArrayList<>();
+        try (final Connection connection = dataSource.getConnection()) {
+            // the cursor is only used by the driver inside a transaction
+            connection.setAutoCommit(false);
+            try (final PreparedStatement statement = connection.prepareStatement(String.format(
+                    SELECT_RECORDS_STATEMENT, level.node.getObject(), DBUtils.quoteIdentifier(linkColumn)))) {
+                statement.setFetchSize(fetchSize);
+                statement.setArray(1, connection.createArrayOf("varchar", level.parentSfids.toArray()));
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        if (written.incrementAndGet() > maxRecords) {
+                            break;
+                        }
+                        sfids.add(resultSet.getString(1));
+                        synchronized (writer) {
+                            if (stopped.get()) {
+                                break;
+                            }
+                            writer.beginObject();
+                            writer.name("object").value(level.node.getObject());
+                            writer.name("parent").value(SFID.equals(linkColumn) ? null : resultSet.getString(2));
+                            writer.name("record").jsonValue(resultSet.getString(3));
+                            writer.endObject();
+                        }
+                    }
+                }
+            } finally {
+                connection.rollback();
+            }
+        }
+        synchronized (writer) {
+            if (!stopped.get()) {
+                writer.flush();
+            }
+        }
+        return sfids;
+    }
+
+    private void resolveChildLinks(Connection connection, HierarchyNode node, int depth,
+            Map<HierarchyNode, String> links, List<String> errors) throws Exception {
+        if (node.getChildren() == null) {
+            return;
+        }
+        if (depth > maxDepth) {
+            errors.add(String.format("hierarchy is deeper than %d levels", maxDepth));
+            return;
+        }
+        for (HierarchyNode child : node.getChildren()) {
+            final String linkColumn = findLinkColumn(connection, child);
+            if (linkColumn == null) {
+                errors.add(String.format("archive table of object %s has no parent link", child.getObject()));
+                continue;
+            }
+            links.put(child, linkColumn);
+            resolveChildLinks(connection, child, depth + 1, links, errors);
+        }
+    }
+
+    private String findLinkColumn(Connection connection, HierarchyNode node) throws Exception {
+        final List<String> candidates = node.getParentField() != null ?
+                Collections.singletonList(node.getParentField().toLowerCase()) :
+                Arrays.asList(ArchiveService.PARENT_EXT_ID_COLUMN.toLowerCase(),
+                        ArchiveService.PARENT_EXT_ID_1_COLUMN.toLowerCase());
+        for (String candidate : candidates) {
+            if (columnExists(connection, node.getObject(), candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean columnExists(Connection connection, String object, String column) throws Exception {
+        try (final PreparedStatement statement = connection.prepareStatement(COLUMN_EXISTS_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveService.ARCHIVE_TABLE_PREFIX +
+                    object);
+            statement.setString(2, column);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private static class Level {
+
+        private final HierarchyNode node;
+        private final List<String> parentSfids;
+
+        private Level(HierarchyNode node, List<String> parentSfids) {
+            this.node = node;
+            this.parentSfids = parentSfids;
+        }
+    }
+}
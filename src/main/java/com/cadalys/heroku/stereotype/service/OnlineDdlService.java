@@ -0,0 +1,223 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.archive.DdlStatementResult;
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.utils.DBUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Executes archive setup DDL without stalling writers of hot tables. Scripts are split into statements and every
+ * statement runs in its own transaction with a short lock_timeout, a statement cancelled while waiting for a lock
+ * is retried with exponential backoff. Indexes are built concurrently, except on partitioned tables which don't
+ * support it. A trigger drop and the following create
+ * of the same trigger run in one transaction, so deletes are never left without an archive trigger.
+ */
+@Service
+public class OnlineDdlService {
+
+    private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+    private static final int REPORTED_STATEMENT_LENGTH = 200;
+
+    private static final Pattern CREATE_INDEX_PATTERN = Pattern.compile(
+            "^CREATE\\s+(UNIQUE\\s+)?INDEX\\s+(CONCURRENTLY\\s+)?(IF\\s+NOT\\s+EXISTS\\s+)?(\"?[\\w$]+\"?)\\s+" +
+                    "ON\\s+(ONLY\\s+)?([\\w$.\"]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern DROP_TRIGGER_PATTERN = Pattern.compile("^DROP\\s+TRIGGER\\s",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern CREATE_TRIGGER_PATTERN = Pattern.compile("^CREATE\\s+TRIGGER\\s",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final String PARTITIONED_STATEMENT =
+            "select exists(select 1 from pg_class c where c.oid = to_regclass(?) and c.relkind = 'p')";
+
+    private static final String INVALID_INDEX_STATEMENT =
+            "select not i.indisvalid from pg_index i where i.indexrelid = to_regclass(?)";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${archive.ddl.lock-timeout:2000}")
+    private long lockTimeout;
+
+    @Value("${archive.ddl.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${archive.ddl.backoff:500}")
+    private long backoff;
+
+    @Value("${archive.ddl.max-backoff:30000}")
+    private long maxBackoff;
+
+    /**
+     * Execute sql script statement by statement. Execution stops at the first statement which fails for other
+     * reason than lock timeout or runs out of attempts, statements executed before it stay committed
+     *
+     * @param connection
+     * @param sql     script
+     * @param results receives report of every executed statement
+     */
+    public void execute(Connection connection, String sql, List<DdlStatementResult> results) throws Exception {
+        final boolean autoCommit = connection.getAutoCommit();
+        try {
+            for (List<String> unit : getExecutionUnits(DBUtils.splitStatements(sql))) {
+                final DdlStatementResult result = new DdlStatementResult(abbreviate(String.join(";\n", unit)));
+                results.add(result);
+                executeUnit(connection, unit, result);
+            }
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Group statements which have to be executed in the same transaction
+     */
+    private List<List<String>> getExecutionUnits(List<String> statements) {
+        final List<List<String>> units = new ArrayList<>();
+        for (int i = 0; i < statements.size(); i++) {
+            final List<String> unit = new ArrayList<>();
+            unit.add(statements.get(i));
+            if (DROP_TRIGGER_PATTERN.matcher(statements.get(i)).lookingAt() && i + 1 < statements.size() &&
+                    CREATE_TRIGGER_PATTERN.matcher(statements.get(i + 1)).lookingAt()) {
+                unit.add(statements.get(++i));
+            }
+            units.add(unit);
+        }
+        return units;
+    }
+
+    private void executeUnit(Connection connection, List<String> unit, DdlStatementResult result) throws Exception {
+        final Matcher createIndex = CREATE_INDEX_PATTERN.matcher(unit.get(0));
+        // indexes of partitioned tables can't be built concurrently, their partitions are indexed one by one
+        // and attached by the caller instead
+        final boolean concurrent = createIndex.lookingAt() && (createIndex.group(2) != null ||
+                createIndex.group(5) == null && !isPartitioned(connection, createIndex.group(6)));
+        if (concurrent && createIndex.group(2) == null) {
+            final int offset = createIndex.group(3) != null ? createIndex.start(3) : createIndex.start(4);
+            unit = Collections.singletonList(new StringBuilder(unit.get(0)).insert(offset, "CONCURRENTLY ")
+                    .toString());
+        }
+        long delay = backoff;
+        for (int attempt = 1; ; attempt++) {
+            result.setAttempts(attempt);
+            final long started = System.currentTimeMillis();
+            try {
+                // concurrent index builds can't run inside a transaction block
+                connection.setAutoCommit(concurrent);
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute(String.format("SET %s lock_timeout = %d", concurrent ? "SESSION" : "LOCAL",
+                            lockTimeout));
+                    for (String sql : unit) {
+                        statement.execute(sql);
+                    }
+                }
+                if (!concurrent) {
+                    connection.commit();
+                }
+                result.setDurationMillis(System.currentTimeMillis() - started);
+                return;
+            } catch (SQLException e) {
+                if (concurrent) {
+                    dropInvalidIndex(connection, createIndex.group(4));
+                } else {
+                    connection.rollback();
+                }
+                if (!LOCK_NOT_AVAILABLE.equals(e.getSQLState()) || attempt >= maxAttempts) {
+                    throw e;
+                }
+                result.setTimedOutAttemptsMillis(result.getTimedOutAttemptsMillis() + System.currentTimeMillis() -
+                        started);
+                logger.warn("lock timeout on attempt {} of {}, retrying in {} ms", attempt, result.getStatement(),
+                        delay);
+                Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                delay = Math.min(delay * 2, maxBackoff);
+            } finally {
+                if (concurrent) {
+                    try (final Statement statement = connection.createStatement()) {
+                        statement.execute("RESET lock_timeout");
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isPartitioned(Connection connection, String tableName) throws SQLException {
+        final String qualifiedName = tableName.contains(".") ? tableName :
+                DataSourceConfiguration.SCHEMA_NAME + "." + tableName;
+        try (final PreparedStatement statement = connection.prepareStatement(PARTITIONED_STATEMENT)) {
+            statement.setString(1, qualifiedName);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        } finally {
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+        }
+    }
+
+    /**
+     * A failed concurrent build leaves an invalid index behind, which IF NOT EXISTS of the retry would accept
+     */
+    private void dropInvalidIndex(Connection connection, String indexName) throws SQLException {
+        final String qualifiedName = DataSourceConfiguration.SCHEMA_NAME + "." + indexName;
+        try (final PreparedStatement statement = connection.prepareStatement(INVALID_INDEX_STATEMENT)) {
+            statement.setString(1, qualifiedName);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next() || !resultSet.getBoolean(1)) {
+                    return;
+                }
+            }
+        }
+        try (final Statement statement = connection.createStatement()) {
+            statement.execute("DROP INDEX CONCURRENTLY IF EXISTS " + qualifiedName);
+        }
+    }
+
+    private String abbreviate(String statement) {
+        return statement.length() > REPORTED_STATEMENT_LENGTH ?
+                statement.substring(0, REPORTED_STATEMENT_LENGTH) + "..." : statement;
+    }
+}
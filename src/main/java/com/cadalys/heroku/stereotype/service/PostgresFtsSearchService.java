@@ -26,22 +26,42 @@
 package com.cadalys.heroku.stereotype.service;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import com.cadalys.heroku.Field;
 import com.cadalys.heroku.ProxySQLOperation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StopWatch;
 
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -61,6 +81,18 @@ public class PostgresFtsSearchService implements FtsSearchService {
     @Autowired
     private Gson gson;
 
+    @Autowired
+    private ColdTierService coldTierService;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${archive.search.fetch-size:500}")
+    private int fetchSize;
+
+    //null values of records should not be ignored
+    private final Gson nullsGson = new GsonBuilder().serializeNulls().create();
+
     @Override
     public String createTsvectorIndex(final Map<String, Object> request) throws SQLException {
         StringBuilder sb = new StringBuilder();
@@ -129,12 +161,109 @@ public class PostgresFtsSearchService implements FtsSearchService {
 
     @Override
     public Map<String,Object> search(final Map<String,Object> request) throws SQLException {
-        StringBuilder sb = new StringBuilder();
-        String ftsConfig = readFtsConfigurationParam(request);
+        Map<String,Object> tableDescr = readTableDescription(request);
 
-        Map<String,Object> tableDescr = (Map<String,Object>)request.get(Field.TABLE);
+        List<Map<String,Object>> columns = readColumns(tableDescr);
+
+        String statement = buildSearchStatement(request, tableDescr, columns);
+
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start("fts search");
+        //executing FTS search
+        List<Map<String,Object>> result = jdbcTemplate.queryForList(statement);
+        if (!coldTierService.isEmpty()) {
+            searchColdTier(request, columns, result.size(), result::add);
+        }
+        stopWatch.stop();
+        Map<String,Object> resultMap = new HashMap<String,Object>();
+        resultMap.put(Field.STATEMENT, statement);
+        resultMap.put(Field.STAT, stopWatch.getTaskInfo()[0].getTimeMillis());
+        resultMap.put(Field.RECORDS,result);
 
-        List<Map<String,Object>> columns = (List<Map<String,Object>>)tableDescr.get(Field.COLUMNS);
+        return resultMap;
+    }
+
+    @Override
+    public void search(final Map<String, Object> request, final OutputStream outputStream)
+            throws SQLException, IOException {
+        Map<String,Object> tableDescr = readTableDescription(request);
+
+        List<Map<String,Object>> columns = readColumns(tableDescr);
+
+        String statement = buildSearchStatement(request, tableDescr, columns);
+
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        writer.beginObject();
+        writer.name(Field.RESULT).beginObject();
+        writer.name(Field.STATEMENT).value(statement);
+        writer.name(Field.RECORDS).beginArray();
+
+        StopWatch stopWatch = new StopWatch();
+        stopWatch.start("fts search");
+        String error = null;
+        int found = 0;
+        //executing FTS search through a cursor, rows are written as they are fetched
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement = connection.prepareStatement(statement)) {
+                preparedStatement.setFetchSize(fetchSize);
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    ResultSetMetaData metaData = resultSet.getMetaData();
+                    while (resultSet.next()) {
+                        writer.beginObject();
+                        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                            writer.name(JdbcUtils.lookupColumnName(metaData, i));
+                            writeValue(writer, JdbcUtils.getResultSetValue(resultSet, i));
+                        }
+                        writer.endObject();
+                        found++;
+                    }
+                }
+            } finally {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            log.error("search error: {}", e.getMessage());
+            error = e.getMessage();
+        }
+        if (error == null && !coldTierService.isEmpty()) {
+            try {
+                searchColdTier(request, columns, found, record -> {
+                    try {
+                        writeValue(writer, record);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        stopWatch.stop();
+        writer.endArray();
+        writer.name(Field.STAT).value(stopWatch.getTaskInfo()[0].getTimeMillis());
+        writer.endObject();
+        writer.name(Field.ERROR).value(error != null);
+        if (error != null) {
+            writer.name(Field.ERROR_MSG).value(error);
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Assembles the FTS search statement of the request and checks it for injection
+     *
+     * @param request
+     * @param tableDescr table description of the request
+     * @param columns    column descriptions of the table
+     * @return sql statement
+     * @throws SQLException
+     */
+    private String buildSearchStatement(final Map<String,Object> request, final Map<String,Object> tableDescr,
+                                        final List<Map<String,Object>> columns) throws SQLException {
+        StringBuilder sb = new StringBuilder();
+        String ftsConfig = readFtsConfigurationParam(request);
 
         String selectable = columns.stream()
                 .filter(c -> ((Boolean) c.get(Field.SELECTABLE)).equals(Boolean.TRUE))
@@ -171,18 +300,66 @@ public class PostgresFtsSearchService implements FtsSearchService {
         checkForSQLInjectionAttack(sb.toString(), ProxySQLOperation.SELECT);
         sb.insert(0,"SELECT ");
         log.debug("search SQL statement: {}", sb.toString());
+        return sb.toString();
+    }
 
-        StopWatch stopWatch = new StopWatch();
-        stopWatch.start("fts search");
-        //executing FTS search
-        List result = jdbcTemplate.queryForList(sb.toString());
-        stopWatch.stop();
-        Map<String,Object> resultMap = new HashMap<String,Object>();
-        resultMap.put(Field.STATEMENT, sb.toString());
-        resultMap.put(Field.STAT, stopWatch.getTaskInfo()[0].getTimeMillis());
-        resultMap.put(Field.RECORDS,result);
+    /**
+     * Writes a record value the same way the whole search result is serialized, nulls included
+     */
+    private void writeValue(final JsonWriter writer, final Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+        } else {
+            nullsGson.toJson(value, value.getClass(), writer);
+        }
+    }
 
-        return resultMap;
+    /**
+     * Searches rows of the table moved to the cold tier. Every query term has to be a prefix of some word
+     * in the ts included columns, the same way the database query uses to_tsquery with prefix matching.
+     * Cold rows are appended after database rows and only fill the remaining limit, each matching row is passed
+     * to the consumer as soon as it is found
+     *
+     * @param request
+     * @param columns  column descriptions of the request
+     * @param found    number of rows found in the database
+     * @param consumer receives the selectable columns of every matching row
+     */
+    private void searchColdTier(final Map<String, Object> request, final List<Map<String, Object>> columns,
+                                final int found, final Consumer<Map<String, Object>> consumer) {
+        final String tableName = (String) ((Map<?, ?>) request.get(Field.TABLE)).get(Field.NAME);
+        final String table = tableName.substring(tableName.lastIndexOf('.') + 1);
+        final int limit = request.containsKey(Field.LIMIT)
+                ? Double.valueOf(request.get(Field.LIMIT).toString()).intValue() : Integer.MAX_VALUE;
+        // only archive tables are tiered, the plan table segments are copies of rows still in the database
+        if (found >= limit || !table.startsWith(ArchiveService.ARCHIVE_TABLE_PREFIX)) {
+            return;
+        }
+
+        final List<String> terms = Arrays.stream(((String) request.get(Field.QUERY)).toLowerCase().split("\\W+"))
+                .filter(e -> !e.isEmpty()).collect(Collectors.toList());
+        final List<String> tsColumns = columns.stream()
+                .filter(c -> ((Boolean) c.get(Field.TSV)).equals(Boolean.TRUE))
+                .map(c -> (String) c.get(Field.NAME)).collect(Collectors.toList());
+        final List<String> selectable = columns.stream()
+                .filter(c -> ((Boolean) c.get(Field.SELECTABLE)).equals(Boolean.TRUE))
+                .map(c -> (String) c.get(Field.NAME)).collect(Collectors.toList());
+        final Set<String> readColumns = new HashSet<>(tsColumns);
+        readColumns.addAll(selectable);
+
+        final int[] remaining = {limit - found};
+        coldTierService.scan(table, meta -> true, readColumns, row -> {
+            final List<String> words = tsColumns.stream().map(row::get).filter(Objects::nonNull)
+                    .flatMap(e -> Arrays.stream(e.toString().toLowerCase().split("\\W+")))
+                    .collect(Collectors.toList());
+            if (terms.stream().allMatch(term -> words.stream().anyMatch(word -> word.startsWith(term)))) {
+                final Map<String, Object> record = new LinkedHashMap<>();
+                selectable.forEach(e -> record.put(e, row.get(e)));
+                consumer.accept(record);
+                remaining[0]--;
+            }
+            return remaining[0] > 0;
+        });
     }
 
     /**
@@ -205,6 +382,24 @@ public class PostgresFtsSearchService implements FtsSearchService {
         }
     }
 
+    /**
+     * reads table description from the request
+     * @param request JSON deserialized into Map
+     * @return table name and column descriptions
+     */
+    private Map<String, Object> readTableDescription(Map<String, Object> request) {
+        return (Map<String, Object>) request.get(Field.TABLE);
+    }
+
+    /**
+     * reads column descriptions from the table description
+     * @param tableDescr table description of the request
+     * @return column descriptions
+     */
+    private List<Map<String, Object>> readColumns(Map<String, Object> tableDescr) {
+        return (List<Map<String, Object>>) tableDescr.get(Field.COLUMNS);
+    }
+
     /**
      * reads FTS configuration parameter value from the request
      * @param request JSON deserialized into Map
@@ -25,59 +25,470 @@
  */
 package com.cadalys.heroku.stereotype.service;
 
+import com.cadalys.heroku.archive.ArchiveMode;
+import com.cadalys.heroku.record.RecordBatchResult;
 import com.cadalys.heroku.record.RecordObject;
 import com.cadalys.heroku.record.RecordObjects;
 import com.cadalys.heroku.config.DataSourceConfiguration;
 import com.cadalys.heroku.exception.ArchiveException;
+import com.cadalys.heroku.utils.DBUtils;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.sql.DataSource;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Service
 public class RecordService {
 
 
-    private static final String DELETE_ROW_STATEMENT =
-            "delete from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s where %1$s.sfid=?";
+    private static final String DELETE_ROWS_STATEMENT =
+            "delete from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s where %1$s.sfid = any(?) returning sfid";
+
+    private static final String ARCHIVE_ROWS_STATEMENT =
+            "with d as (delete from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s where %1$s.sfid = any(?) " +
+                    "returning *), archived as (insert into %2$s select %3$s from d where exists(select 1 from " +
+                    DataSourceConfiguration.SCHEMA_NAME + ".cadarch__archive_plan__c p where " +
+                    "p.cadarch__plan_type__c = 'Archive' and LOWER(p.cadarch__type__c) = LOWER('%1$s') and " +
+                    "p.cadarch__sourceid__c = d.sfid)) select sfid from d";
+
+    private static final String ARCHIVE_SETUP_STATEMENT =
+            "select archive_mode, archived_columns from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    ArchiveService.ARCHIVE_SETUP_TABLE_NAME + " where object_name = LOWER(?) and archived_columns " +
+                    "is not null";
+
+    private static final String ARCHIVE_TRIGGER_EXISTS_STATEMENT =
+            "select exists(select 1 from pg_trigger where tgrelid = to_regclass(?) and tgname = ?) " +
+                    "and to_regclass(?) is not null";
+
+    private static final String SETUP_TABLE_EXISTS_STATEMENT =
+            "select to_regclass('" + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    ArchiveService.ARCHIVE_SETUP_TABLE_NAME + "') is not null";
+
+    private static final String REF_FIELDS_STATEMENT =
+            "select object_name, ref_field from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    ArchiveService.ARCHIVE_SETUP_TABLE_NAME + " where object_name = any(?) and ref_field is not null";
+
+    private static final String PARENT_REFS_STATEMENT =
+            "select distinct %1$s from " + DataSourceConfiguration.SCHEMA_NAME + ".%2$s where sfid = any(?) " +
+                    "and %1$s is not null";
 
     @Autowired
     private DataSource dataSource;
 
+    @Autowired
+    private Gson gson;
+
+    @Value("${archive.record.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${archive.record.statement-archive:false}")
+    private boolean statementArchive;
+
+    @Value("${archive.record.parallelism:4}")
+    private int parallelism;
+
+    private ExecutorService deleteExecutor;
+
     /**
-     * Delete records by object name and sfid
+     * Delete records by object name and sfid. Records are grouped by object and every group is deleted in chunks,
+     * each chunk in its own transaction. Groups of different objects are deleted concurrently, each on its own
+     * connection, except that a group waits for the groups of its child objects. Heroku Connect tables have no
+     * foreign keys, so a child is an object whose archive setup reference field points at records of the other
+     * object deleted by the same call
      *
      * @param objects
      */
     public void deleteRecords(RecordObjects objects) {
         List<String> errors = new ArrayList<>();
+        final Map<String, List<String>> ids = new LinkedHashMap<>();
+        for (RecordObject object : objects.getObjects()) {
+            ids.computeIfAbsent(object.getObject(), e -> new ArrayList<>()).add(object.getId());
+        }
+        try {
+            final Map<String, Set<String>> children = findChildren(ids);
+            final Map<String, List<String>> groupErrors = new ConcurrentHashMap<>();
+            final Map<String, CompletableFuture<Void>> groups = new HashMap<>();
+            for (String object : ids.keySet()) {
+                scheduleGroup(object, ids, children, groupErrors, groups, new HashSet<>());
+            }
+            CompletableFuture.allOf(groups.values().toArray(new CompletableFuture<?>[0])).get();
+            // errors are reported in the order of objects in the request
+            for (String object : ids.keySet()) {
+                errors.addAll(groupErrors.getOrDefault(object, Collections.emptyList()));
+            }
+        } catch (Exception e) {
+            errors.add(e.getMessage());
+        }
+
+        if (!errors.isEmpty()) {
+            throw new ArchiveException(errors);
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        deleteExecutor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        deleteExecutor.shutdownNow();
+    }
+
+    /**
+     * Delete records read from a stream of newline delimited {object, id} json records. Records are collected into
+     * per object batches, a full batch is deleted while the next one is read and its result is written as a json
+     * line as soon as it is done, so at most two batches are held in memory regardless of the stream length
+     *
+     * @param inputStream  newline delimited records
+     * @param outputStream newline delimited {@link RecordBatchResult}s
+     */
+    public void deleteRecordStream(InputStream inputStream, OutputStream outputStream) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        final Writer writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+        // single worker keeps the batches on one connection in the order they were read
+        final ExecutorService batchExecutor = Executors.newSingleThreadExecutor();
         try (final Connection connection = dataSource.getConnection()) {
             connection.setAutoCommit(false);
-            for (RecordObject object : objects.getObjects()) {
-                try {
-                    final PreparedStatement deletePreparedStatement = connection.prepareStatement(
-                            String.format(DELETE_ROW_STATEMENT, object.getObject()));
-                    deletePreparedStatement.setString(1, object.getId());
-                    if (deletePreparedStatement.executeUpdate() < 1) {
-                        errors.add(String.format("row of object %s with sfid=%s wasn't delete. Row doesn't exists",
-                                object.getObject(), object.getId()));
-                    }
-                    connection.commit();
-                } catch (Exception e) {
-                    errors.add(e.getMessage());
+            final Map<String, List<String>> batches = new LinkedHashMap<>();
+            Future<RecordBatchResult> pending = null;
+            String line;
+            long lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final RecordObject object = parseRecord(line);
+                if (object == null) {
+                    final RecordBatchResult result = new RecordBatchResult(null, 1);
+                    result.getErrors().add(String.format("line %d isn't a valid record", lineNumber));
+                    writeResult(writer, result);
+                    continue;
                 }
+                final List<String> batch = batches.computeIfAbsent(object.getObject(), e -> new ArrayList<>());
+                batch.add(object.getId());
+                if (batch.size() >= chunkSize) {
+                    batches.remove(object.getObject());
+                    pending = submitBatch(writer, batchExecutor, pending, connection, object.getObject(), batch);
+                }
+            }
+            for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+                pending = submitBatch(writer, batchExecutor, pending, connection, batch.getKey(), batch.getValue());
+            }
+            awaitBatch(writer, pending);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            final RecordBatchResult result = new RecordBatchResult(null, 0);
+            result.getErrors().add(e.getMessage());
+            writeResult(writer, result);
+        } finally {
+            batchExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Delete a chunk of records of the object in one transaction. When the chunk fails as a whole its records are
+     * deleted one by one, so a single failing row is reported alone as before
+     *
+     * @param connection connection with auto commit disabled
+     * @param statement
+     * @param ids
+     * @param errors     collects the failed and missing records
+     * @return number of deleted records
+     */
+    private int deleteChunk(Connection connection, DeleteStatement statement, List<String> ids, List<String> errors)
+            throws Exception {
+        try {
+            final List<String> missing = new ArrayList<>();
+            final int deleted = deleteRows(connection, statement, ids, missing);
+            connection.commit();
+            errors.addAll(missing);
+            return deleted;
+        } catch (Exception e) {
+            connection.rollback();
+            if (ids.size() == 1) {
+                errors.add(e.getMessage());
+                return 0;
+            }
+        }
+        int deleted = 0;
+        for (String id : ids) {
+            deleted += deleteChunk(connection, statement, Collections.singletonList(id), errors);
+        }
+        return deleted;
+    }
+
+    /**
+     * Schedule delete of the object group after the groups of its child objects. A child which is already being
+     * visited closes a reference cycle, its ordering is dropped
+     */
+    private CompletableFuture<Void> scheduleGroup(String object, Map<String, List<String>> ids,
+            Map<String, Set<String>> children, Map<String, List<String>> groupErrors,
+            Map<String, CompletableFuture<Void>> groups, Set<String> visiting) {
+        final CompletableFuture<Void> scheduled = groups.get(object);
+        if (scheduled != null) {
+            return scheduled;
+        }
+        visiting.add(object);
+        final List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+        for (String child : children.getOrDefault(object, Collections.emptySet())) {
+            if (!visiting.contains(child)) {
+                dependencies.add(scheduleGroup(child, ids, children, groupErrors, groups, visiting));
+            }
+        }
+        visiting.remove(object);
+        final CompletableFuture<Void> group = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> groupErrors.put(object, deleteGroup(object, ids.get(object))), deleteExecutor);
+        groups.put(object, group);
+        return group;
+    }
+
+    private List<String> deleteGroup(String object, List<String> objectIds) {
+        final List<String> errors = new ArrayList<>();
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            final DeleteStatement statement = buildDeleteStatement(connection, object);
+            for (int i = 0; i < objectIds.size(); i += chunkSize) {
+                deleteChunk(connection, statement, objectIds.subList(i, Math.min(i + chunkSize, objectIds.size())),
+                        errors);
             }
         } catch (Exception e) {
             errors.add(e.getMessage());
         }
+        return errors;
+    }
 
-        if (!errors.isEmpty()) {
-            throw new ArchiveException(errors);
+    /**
+     * Find child objects of each of the objects, among the objects only. The reference field of a child is the
+     * one its ParentExtID column is filled from, as recorded by the archive setup. The child belongs to every other
+     * object whose deleted records its deleted records reference
+     *
+     * @param ids deleted record ids by object
+     * @return map of object to its child objects
+     */
+    private Map<String, Set<String>> findChildren(Map<String, List<String>> ids) throws Exception {
+        final Map<String, Set<String>> children = new HashMap<>();
+        if (ids.size() < 2) {
+            return children;
+        }
+        try (final Connection connection = dataSource.getConnection()) {
+            final Map<String, String> refFields = findRefFields(connection, ids.keySet());
+            for (Map.Entry<String, List<String>> child : ids.entrySet()) {
+                final String refField = refFields.get(child.getKey().toLowerCase(Locale.ROOT));
+                if (refField == null) {
+                    continue;
+                }
+                final Set<String> parentIds = new HashSet<>();
+                try (final PreparedStatement statement = connection.prepareStatement(
+                        String.format(PARENT_REFS_STATEMENT,
+                                DBUtils.quoteIdentifier(refField.toLowerCase(Locale.ROOT)), child.getKey()))) {
+                    statement.setArray(1, connection.createArrayOf("varchar", child.getValue().toArray()));
+                    try (final ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            parentIds.add(resultSet.getString(1));
+                        }
+                    }
+                }
+                for (Map.Entry<String, List<String>> parent : ids.entrySet()) {
+                    if (parent != child && parent.getValue().stream().anyMatch(parentIds::contains)) {
+                        children.computeIfAbsent(parent.getKey(), e -> new HashSet<>()).add(child.getKey());
+                    }
+                }
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Find the fields the ParentExtID columns of the objects are filled from
+     *
+     * @return field name by lower case object name, objects without a parent in the archive setup are left out
+     */
+    private Map<String, String> findRefFields(Connection connection, Set<String> objects) throws Exception {
+        final Map<String, String> refFields = new HashMap<>();
+        if (!isSetupRecorded(connection)) {
+            return refFields;
+        }
+        try (final PreparedStatement statement = connection.prepareStatement(REF_FIELDS_STATEMENT)) {
+            statement.setArray(1, connection.createArrayOf("varchar", objects.stream()
+                    .map(e -> e.toLowerCase(Locale.ROOT)).toArray()));
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    refFields.put(resultSet.getString(1), resultSet.getString(2));
+                }
+            }
+        }
+        return refFields;
+    }
+
+    private Future<RecordBatchResult> submitBatch(Writer writer, ExecutorService batchExecutor,
+            Future<RecordBatchResult> pending, Connection connection, String object, List<String> ids)
+            throws Exception {
+        // the previous batch has to finish first, this is what holds the reader back when deletes are slower
+        awaitBatch(writer, pending);
+        return batchExecutor.submit(() -> deleteBatch(connection, object, ids));
+    }
+
+    private void awaitBatch(Writer writer, Future<RecordBatchResult> pending) throws Exception {
+        if (pending == null) {
+            return;
+        }
+        try {
+            writeResult(writer, pending.get());
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private RecordBatchResult deleteBatch(Connection connection, String object, List<String> ids) throws Exception {
+        final long started = System.currentTimeMillis();
+        final RecordBatchResult result = new RecordBatchResult(object, ids.size());
+        final DeleteStatement statement = buildDeleteStatement(connection, object);
+        int deleted = 0;
+        for (int i = 0; i < ids.size(); i += chunkSize) {
+            deleted += deleteChunk(connection, statement, ids.subList(i, Math.min(i + chunkSize, ids.size())),
+                    result.getErrors());
+        }
+        result.setDeleted(deleted);
+        result.setDurationMillis(System.currentTimeMillis() - started);
+        return result;
+    }
+
+    private RecordObject parseRecord(String line) {
+        try {
+            final RecordObject object = gson.fromJson(line, RecordObject.class);
+            return object == null || object.getObject() == null || object.getId() == null ? null : object;
+        } catch (JsonParseException e) {
+            return null;
         }
     }
 
+    private void writeResult(Writer writer, RecordBatchResult result) throws IOException {
+        writer.write(gson.toJson(result));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * Build delete statement of the object. When the archive trigger of the object is installed the statement
+     * archives the deleted rows itself in one set based insert, the trigger is skipped for its transaction. The
+     * insert targets what the trigger was set up with, the archive queue in queue mode, and lists the columns the
+     * trigger lists. Objects set up before the setup was recorded are left to the trigger
+     */
+    private DeleteStatement buildDeleteStatement(Connection connection, String object) throws Exception {
+        if (statementArchive && hasArchiveTrigger(connection, object) && isSetupRecorded(connection)) {
+            try (final PreparedStatement statement = connection.prepareStatement(ARCHIVE_SETUP_STATEMENT)) {
+                statement.setString(1, object);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        final boolean queued = ArchiveMode.QUEUE.name().equals(resultSet.getString(1));
+                        final List<String> columns = Arrays.asList((String[]) resultSet.getArray(2).getArray());
+                        return new DeleteStatement(object, String.format(ARCHIVE_ROWS_STATEMENT, object,
+                                DBUtils.getArchiveInsertTarget(DataSourceConfiguration.SCHEMA_NAME, object, columns,
+                                        queued),
+                                DBUtils.getArchiveInsertValues(object, columns, queued, "d")), true);
+                    }
+                }
+            }
+        }
+        return new DeleteStatement(object, String.format(DELETE_ROWS_STATEMENT, object), false);
+    }
+
+    private boolean isSetupRecorded(Connection connection) throws Exception {
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(SETUP_TABLE_EXISTS_STATEMENT)) {
+            return resultSet.next() && resultSet.getBoolean(1);
+        }
+    }
+
+    private boolean hasArchiveTrigger(Connection connection, String object) throws Exception {
+        try (final PreparedStatement statement = connection.prepareStatement(ARCHIVE_TRIGGER_EXISTS_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + object);
+            statement.setString(2, ArchiveService.ARCHIVE_TABLE_PREFIX + object.toLowerCase(Locale.ROOT) + "_delete");
+            statement.setString(3, DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveService.ARCHIVE_TABLE_PREFIX +
+                    object);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() && resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private int deleteRows(Connection connection, DeleteStatement statement, List<String> ids, List<String> errors)
+            throws Exception {
+        final String object = statement.object;
+        if (statement.archiving) {
+            try (final Statement skipStatement = connection.createStatement()) {
+                skipStatement.execute("set local " + DBUtils.SKIP_ARCHIVE_SETTING + " = 'on'");
+            }
+        }
+        final Map<String, Integer> deletedIds = new HashMap<>();
+        try (final PreparedStatement deletePreparedStatement = connection.prepareStatement(statement.sql)) {
+            deletePreparedStatement.setArray(1, connection.createArrayOf("varchar", ids.toArray()));
+            try (final ResultSet resultSet = deletePreparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    deletedIds.merge(resultSet.getString(1), 1, Integer::sum);
+                }
+            }
+        }
+        int deleted = 0;
+        for (String id : ids) {
+            // an id sent twice is deleted once, the repeated one is reported missing like before
+            if (deletedIds.getOrDefault(id, 0) > 0) {
+                deletedIds.merge(id, -1, Integer::sum);
+                deleted++;
+            } else {
+                errors.add(String.format("row of object %s with sfid=%s wasn't delete. Row doesn't exists",
+                        object, id));
+            }
+        }
+        return deleted;
+    }
+
+    private static class DeleteStatement {
+
+        private final String object;
+        private final String sql;
+        private final boolean archiving;
+
+        private DeleteStatement(String object, String sql, boolean archiving) {
+            this.object = object;
+            this.sql = sql;
+            this.archiving = archiving;
+        }
+    }
 }
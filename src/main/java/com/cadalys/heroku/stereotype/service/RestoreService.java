@@ -0,0 +1,449 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.archive.RestoreRequest;
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.exception.ArchiveException;
+import com.cadalys.heroku.utils.DBUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Restores archived rows from the archive table back into the source table. Selected rows are moved in batches,
+ * every batch is inserted into the source table and deleted from the archive table by a single statement, so each
+ * transaction stays short. When a record was archived more than once, only its latest archived version is restored
+ * and removed, older versions stay archived. Rows which already exist in the source table are skipped and stay
+ * archived.
+ * <p/>
+ * Restore jobs run on a bounded executor, jobs over its queue are rejected. Batches of all jobs share one pool of
+ * workers. While Heroku Connect has more pending rows in the source table than configured, new batches wait.
+ */
+@Service
+public class RestoreService {
+
+    private static final String STATUS_QUEUED = "QUEUED";
+    private static final String STATUS_RUNNING = "RUNNING";
+    private static final String STATUS_DONE = "DONE";
+    private static final String STATUS_FAILED = "FAILED";
+
+    private static final String ID_COLUMN = "id";
+    private static final String HEROKU_CONNECT_COLUMN_PREFIX = "_hc_";
+    private static final String HEROKU_CONNECT_LASTOP_COLUMN = "_hc_lastop";
+
+    private static final String COLUMNS_STATEMENT =
+            "select attname from pg_attribute where attrelid = to_regclass(?) and attnum > 0 and not attisdropped " +
+                    "order by attnum";
+
+    // rows are keyed by (tableoid, ctid), which is unique across partitions of the archive table
+    private static final String RESTORE_BATCH_STATEMENT =
+            "with picked as (select distinct on (sfid) tableoid as picked_table, ctid as picked_row from " +
+                    DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveService.ARCHIVE_TABLE_PREFIX + "%1$s " +
+                    "where sfid = any(?) order by sfid%4$s), restored as (insert into " +
+                    DataSourceConfiguration.SCHEMA_NAME + ".%1$s (%2$s) select %3$s from " +
+                    DataSourceConfiguration.SCHEMA_NAME + "." + ArchiveService.ARCHIVE_TABLE_PREFIX + "%1$s " +
+                    "where (tableoid, ctid) in (select picked_table, picked_row from picked) on conflict do nothing " +
+                    "returning sfid) delete from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    ArchiveService.ARCHIVE_TABLE_PREFIX + "%1$s a using restored r where a.sfid = r.sfid and " +
+                    "(a.tableoid, a.ctid) in (select picked_table, picked_row from picked)";
+
+    private static final String LATEST_VERSION_ORDER = ", " + ArchiveService.ARCHIVED_DATE_COLUMN + " desc";
+
+    private static final String SELECT_BATCH_STATEMENT =
+            "select distinct sfid from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    ArchiveService.ARCHIVE_TABLE_PREFIX + "%1$s where sfid > ? and %2$s order by sfid limit ?";
+
+    private static final String PENDING_SYNC_STATEMENT =
+            "select count(*) from (select 1 from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s where " +
+                    HEROKU_CONNECT_LASTOP_COLUMN + " = 'PENDING' limit ?) p";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<String, RestoreJob> jobs = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor jobExecutor;
+
+    private ExecutorService batchExecutor;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private AttachmentBlobService attachmentBlobService;
+
+    @Value("${archive.restore.jobs:2}")
+    private int jobWorkers;
+
+    @Value("${archive.restore.queue-size:10}")
+    private int queueSize;
+
+    @Value("${archive.restore.workers:4}")
+    private int workers;
+
+    @Value("${archive.restore.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${archive.restore.max-pending:50000}")
+    private int maxPending;
+
+    @Value("${archive.restore.pause:5000}")
+    private long pause;
+
+    @Value("${archive.restore.retention:86400000}")
+    private long retention;
+
+    @PostConstruct
+    public void init() {
+        jobExecutor = new ThreadPoolExecutor(jobWorkers, jobWorkers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize));
+        batchExecutor = Executors.newFixedThreadPool(workers);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+        batchExecutor.shutdownNow();
+    }
+
+    /**
+     * Start restore of archived rows selected by the request
+     *
+     * @param request
+     * @return identifier of started restore job
+     */
+    public String startRestore(RestoreRequest request) {
+        final RestoreJob job;
+        try (final Connection connection = dataSource.getConnection()) {
+            job = new RestoreJob(request, buildRestoreStatement(connection, request.getObject()),
+                    buildSelection(connection, request), hasPendingSyncColumn(connection, request.getObject()));
+        } catch (ArchiveException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ArchiveException(Collections.singletonList(e.getMessage()));
+        }
+        final long expiredBefore = System.currentTimeMillis() - retention;
+        jobs.values().removeIf(e -> e.finishedAt != null && e.finishedAt < expiredBefore);
+        jobs.put(job.id, job);
+        try {
+            jobExecutor.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            throw new ArchiveException(Collections.singletonList("too many restore jobs are queued, try again later"));
+        }
+        return job.id;
+    }
+
+    /**
+     * Get progress of the restore job
+     *
+     * @param id
+     * @return
+     */
+    public Map<String, Object> getStatus(String id) {
+        final RestoreJob job = jobs.get(id);
+        if (job == null) {
+            throw new ArchiveException(Collections.singletonList(String.format("restore job %s doesn't exists", id)));
+        }
+        final long elapsed = (job.finishedAt == null ? System.currentTimeMillis() : job.finishedAt) - job.startedAt;
+        final Map<String, Object> status = new HashMap<>();
+        status.put("id", job.id);
+        status.put("object", job.request.getObject());
+        status.put("status", job.status);
+        status.put("rowsRestored", job.rowsRestored.get());
+        status.put("rowsSkipped", job.rowsSkipped.get());
+        status.put("batches", job.batches.get());
+        status.put("rowsPerSecond", elapsed > 0 ? job.rowsRestored.get() * 1000.0 / elapsed : 0);
+        status.put("pendingSync", job.pendingSync);
+        status.put("startedAt", job.startedAt);
+        status.put("finishedAt", job.finishedAt);
+        status.put("error", job.error);
+        return status;
+    }
+
+    private void run(RestoreJob job) {
+        job.status = STATUS_RUNNING;
+        // bounds batches the job selects ahead of the workers
+        final Semaphore permits = new Semaphore(workers * 2);
+        try {
+            if (job.request.getSfids() != null && job.request.getSfids().length > 0) {
+                final String[] sfids = job.request.getSfids();
+                for (int i = 0; i < sfids.length && job.error == null; i += batchSize) {
+                    submitBatch(job, permits, Arrays.asList(sfids).subList(i, Math.min(i + batchSize, sfids.length)));
+                }
+            } else {
+                String lastSfid = "";
+                List<String> batch;
+                do {
+                    batch = selectBatch(job, lastSfid);
+                    if (!batch.isEmpty()) {
+                        lastSfid = batch.get(batch.size() - 1);
+                        submitBatch(job, permits, batch);
+                    }
+                } while (batch.size() == batchSize && job.error == null);
+            }
+        } catch (Exception e) {
+            logger.error("Error restoring " + job.request.getObject(), e);
+            job.error = e.getMessage();
+        } finally {
+            try {
+                // all permits are back once every submitted batch is done
+                permits.acquire(workers * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                job.error = job.error == null ? "restore interrupted" : job.error;
+            }
+            job.finishedAt = System.currentTimeMillis();
+            job.status = job.error == null ? STATUS_DONE : STATUS_FAILED;
+        }
+    }
+
+    private void submitBatch(RestoreJob job, Semaphore permits, List<String> sfids) throws Exception {
+        waitForPendingSync(job);
+        permits.acquire();
+        batchExecutor.execute(() -> {
+            try {
+                // batches queued behind a failed one of the same job are dropped
+                if (job.error == null) {
+                    restoreBatch(job, sfids);
+                }
+            } catch (Exception e) {
+                logger.error("Error restoring batch of " + job.request.getObject(), e);
+                job.error = e.getMessage();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private void restoreBatch(RestoreJob job, List<String> sfids) throws Exception {
+        try (final Connection connection = dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(job.restoreStatement)) {
+            final Array array = connection.createArrayOf("varchar", sfids.toArray());
+            statement.setArray(1, array);
+            final int restored = statement.executeUpdate();
+            job.rowsRestored.addAndGet(restored);
+            job.rowsSkipped.addAndGet(sfids.size() - restored);
+            job.batches.incrementAndGet();
+        }
+    }
+
+    private List<String> selectBatch(RestoreJob job, String lastSfid) throws Exception {
+        final List<String> sfids = new ArrayList<>();
+        try (final Connection connection = dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(job.selectStatement)) {
+            int index = 1;
+            statement.setString(index++, lastSfid);
+            for (String parameter : job.selectParameters) {
+                statement.setString(index++, parameter);
+            }
+            statement.setInt(index, batchSize);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    sfids.add(resultSet.getString(1));
+                }
+            }
+        }
+        return sfids;
+    }
+
+    /**
+     * Hold new batches while Heroku Connect has too many rows of the source table to synchronize
+     */
+    private void waitForPendingSync(RestoreJob job) throws Exception {
+        if (!job.pendingSyncTracked) {
+            return;
+        }
+        while (true) {
+            try (final Connection connection = dataSource.getConnection();
+                 final PreparedStatement statement = connection.prepareStatement(
+                         String.format(PENDING_SYNC_STATEMENT, job.request.getObject()))) {
+                statement.setInt(1, maxPending);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    job.pendingSync = resultSet.getLong(1);
+                }
+            }
+            if (job.pendingSync < maxPending) {
+                return;
+            }
+            Thread.sleep(pause);
+        }
+    }
+
+    private String buildRestoreStatement(Connection connection, String objectName) throws Exception {
+        final List<String> archiveColumns = findColumns(connection, ArchiveService.ARCHIVE_TABLE_PREFIX + objectName);
+        if (archiveColumns.isEmpty()) {
+            throw new ArchiveException(Collections.singletonList(
+                    String.format("archive table of object %s doesn't exists", objectName)));
+        }
+        final List<String> sourceColumns = findColumns(connection, objectName);
+        if (sourceColumns.isEmpty()) {
+            throw new ArchiveException(Collections.singletonList(
+                    String.format("object %s doesn't exists", objectName)));
+        }
+        // identity and Heroku Connect bookkeeping columns are left to the source table defaults and triggers
+        final List<String> columns = sourceColumns.stream()
+                .filter(archiveColumns::contains)
+                .filter(e -> !e.equals(ID_COLUMN) && !e.startsWith(HEROKU_CONNECT_COLUMN_PREFIX))
+                .collect(Collectors.toList());
+        // archived attachment bodies kept in the blob store are read back from it
+        final boolean attachment = objectName.equalsIgnoreCase(AttachmentBlobService.ATTACHMENT_TABLE_NAME);
+        final List<String> values = new ArrayList<>();
+        for (String column : columns) {
+            values.add(attachment && column.equals(attachmentBlobService.getBodyColumn())
+                    ? attachmentBlobService.getRestoreExpression(connection, archiveColumns)
+                    : DBUtils.buildColumnList(Collections.singletonList(column), null));
+        }
+        return String.format(RESTORE_BATCH_STATEMENT, objectName, DBUtils.buildColumnList(columns, null),
+                String.join(", ", values),
+                archiveColumns.contains(ArchiveService.ARCHIVED_DATE_COLUMN) ? LATEST_VERSION_ORDER : "");
+    }
+
+    private Selection buildSelection(Connection connection, RestoreRequest request) throws Exception {
+        final List<String> conditions = new ArrayList<>();
+        final List<String> parameters = new ArrayList<>();
+        final List<String> archiveColumns = findColumns(connection,
+                ArchiveService.ARCHIVE_TABLE_PREFIX + request.getObject());
+        if (request.getParentExtId() != null && !request.getParentExtId().isEmpty()) {
+            final List<String> parentColumns = archiveColumns.stream()
+                    .filter(e -> e.startsWith(ArchiveService.PARENT_EXT_ID_COLUMN.toLowerCase()))
+                    .collect(Collectors.toList());
+            if (parentColumns.isEmpty()) {
+                throw new ArchiveException(Collections.singletonList(
+                        String.format("archive table of object %s has no parent reference", request.getObject())));
+            }
+            conditions.add(parentColumns.stream().map(e -> DBUtils.quoteIdentifier(e) + " = ?")
+                    .collect(Collectors.joining(" or ", "(", ")")));
+            parentColumns.forEach(e -> parameters.add(request.getParentExtId()));
+        }
+        if (request.getFrom() != null || request.getTo() != null) {
+            final String dateField = request.getDateField() == null ? ArchiveService.ARCHIVED_DATE_COLUMN :
+                    request.getDateField().toLowerCase();
+            if (!archiveColumns.contains(dateField)) {
+                throw new ArchiveException(Collections.singletonList(
+                        String.format("archive table of object %s has no column %s", request.getObject(),
+                                dateField)));
+            }
+            if (request.getFrom() != null) {
+                conditions.add(DBUtils.quoteIdentifier(dateField) + " >= ?::timestamptz");
+                parameters.add(request.getFrom());
+            }
+            if (request.getTo() != null) {
+                conditions.add(DBUtils.quoteIdentifier(dateField) + " < ?::timestamptz");
+                parameters.add(request.getTo());
+            }
+        }
+        final boolean bySfids = request.getSfids() != null && request.getSfids().length > 0;
+        if (!bySfids && conditions.isEmpty()) {
+            throw new ArchiveException(Collections.singletonList("restore needs sfids, parent id or date range"));
+        }
+        return new Selection(String.format(SELECT_BATCH_STATEMENT, request.getObject(),
+                conditions.isEmpty() ? "true" : String.join(" and ", conditions)), parameters);
+    }
+
+    private boolean hasPendingSyncColumn(Connection connection, String objectName) throws Exception {
+        return findColumns(connection, objectName).contains(HEROKU_CONNECT_LASTOP_COLUMN);
+    }
+
+    private List<String> findColumns(Connection connection, String tableName) throws Exception {
+        final List<String> columns = new ArrayList<>();
+        try (final PreparedStatement statement = connection.prepareStatement(COLUMNS_STATEMENT)) {
+            statement.setString(1, DataSourceConfiguration.SCHEMA_NAME + "." + tableName);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    columns.add(resultSet.getString(1));
+                }
+            }
+        }
+        return columns;
+    }
+
+    private static class Selection {
+
+        private final String statement;
+        private final List<String> parameters;
+
+        private Selection(String statement, List<String> parameters) {
+            this.statement = statement;
+            this.parameters = parameters;
+        }
+    }
+
+    private static class RestoreJob {
+
+        private final String id = UUID.randomUUID().toString();
+        private final RestoreRequest request;
+        private final String restoreStatement;
+        private final String selectStatement;
+        private final List<String> selectParameters;
+        private final boolean pendingSyncTracked;
+        private final long startedAt = System.currentTimeMillis();
+        private final AtomicLong rowsRestored = new AtomicLong();
+        private final AtomicLong rowsSkipped = new AtomicLong();
+        private final AtomicLong batches = new AtomicLong();
+        private volatile String status = STATUS_QUEUED;
+        private volatile Long finishedAt;
+        private volatile Long pendingSync;
+        private volatile String error;
+
+        private RestoreJob(RestoreRequest request, String restoreStatement, Selection selection,
+                boolean pendingSyncTracked) {
+            this.request = request;
+            this.restoreStatement = restoreStatement;
+            this.selectStatement = selection.statement;
+            this.selectParameters = selection.parameters;
+            this.pendingSyncTracked = pendingSyncTracked;
+        }
+    }
+}
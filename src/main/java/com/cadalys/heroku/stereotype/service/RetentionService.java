@@ -0,0 +1,421 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.archive.RetentionPolicy;
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.exception.ArchiveException;
+import com.cadalys.heroku.utils.DBUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Purges archived rows according to the retention policy of every archive table. Rows are deleted in small sfid
+ * keyset batches, each batch in its own transaction. The batch size follows the configured batch latency target
+ * and the delay between batches grows while replicas lag behind, autovacuum workers are saturated or dead tuples
+ * of the table pile up, and shrinks back once they recover.
+ * <p/>
+ * Partitions of partitioned archive tables which are entirely out of AGE retention on the archive date are
+ * dropped instead of purged row by row.
+ */
+@Service
+public class RetentionService {
+
+    public static final String POLICY_TABLE_NAME = "cadarch__retention_policy";
+
+    private static final String PURGE_PLAN_TYPE = "Purge";
+
+    private static final int REPORTED_BATCHES = 20;
+
+    private static final String POLICY_TABLE_STATEMENT =
+            "CREATE TABLE IF NOT EXISTS " + DataSourceConfiguration.SCHEMA_NAME + "." + POLICY_TABLE_NAME + " (" +
+                    "object_name varchar(255) PRIMARY KEY, policy_type varchar(16) NOT NULL, age_days integer, " +
+                    "date_field varchar(255))";
+
+    private static final String SAVE_POLICY_STATEMENT =
+            "insert into " + DataSourceConfiguration.SCHEMA_NAME + "." + POLICY_TABLE_NAME +
+                    " (object_name, policy_type, age_days, date_field) values (?, ?, ?, ?) on conflict (object_name) " +
+                    "do update set policy_type = excluded.policy_type, age_days = excluded.age_days, " +
+                    "date_field = excluded.date_field";
+
+    private static final String POLICIES_STATEMENT =
+            "select object_name, policy_type, age_days, date_field from " + DataSourceConfiguration.SCHEMA_NAME + "." +
+                    POLICY_TABLE_NAME + " order by object_name";
+
+    private static final String POLICY_TABLE_EXISTS_STATEMENT =
+            "select to_regclass('" + DataSourceConfiguration.SCHEMA_NAME + "." + POLICY_TABLE_NAME + "') is not null";
+
+    private static final String PURGE_BATCH_STATEMENT =
+            "with batch as (select a.sfid from " + DataSourceConfiguration.SCHEMA_NAME + ".%1$s a where a.sfid > ? " +
+                    "and %2$s order by a.sfid limit ?), deleted as (delete from " +
+                    DataSourceConfiguration.SCHEMA_NAME + ".%1$s a using batch b where a.sfid = b.sfid " +
+                    "returning a.sfid) select count(*), max(sfid) from deleted";
+
+    private static final String AGE_CONDITION = "a.%1$s < now() - ? * interval '1 day'";
+
+    private static final String PLAN_CONDITION =
+            "exists(select 1 from " + DataSourceConfiguration.SCHEMA_NAME + ".cadarch__archive_plan__c p where " +
+                    "p.cadarch__plan_type__c = '" + PURGE_PLAN_TYPE + "' and LOWER(p.cadarch__type__c) = LOWER(?) " +
+                    "and p.cadarch__sourceid__c = a.sfid)";
+
+    private static final String TABLE_EXISTS_STATEMENT = "select to_regclass(?) is not null";
+
+    private static final String COLUMN_EXISTS_STATEMENT =
+            "select exists(select 1 from pg_attribute where attrelid = to_regclass(?) and attname = ? " +
+                    "and attnum > 0 and not attisdropped)";
+
+    private static final String HEALTH_STATEMENT =
+            "select (select coalesce(max(extract(epoch from replay_lag)), 0) from pg_stat_replication) as lag, " +
+                    "(select count(*) from pg_stat_activity where backend_type = 'autovacuum worker') as workers, " +
+                    "current_setting('autovacuum_max_workers')::integer as max_workers, " +
+                    "coalesce(sum(s.n_live_tup), 0) as live, coalesce(sum(s.n_dead_tup), 0) as dead, " +
+                    "coalesce(sum(pg_total_relation_size(s.relid)), 0) as size from pg_stat_user_tables s " +
+                    "where s.relid = to_regclass(?) or s.relid in (select i.inhrelid from pg_inherits i " +
+                    "where i.inhparent = to_regclass(?))";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<String, Deque<Map<String, Object>>> reports = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> purgedRows = new ConcurrentHashMap<>();
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private ArchivePartitionService archivePartitionService;
+
+    @Value("${archive.retention.enabled:false}")
+    private boolean enabled;
+
+    @Value("${archive.retention.min-batch-size:100}")
+    private int minBatchSize;
+
+    @Value("${archive.retention.max-batch-size:5000}")
+    private int maxBatchSize;
+
+    @Value("${archive.retention.target-latency:200}")
+    private long targetLatency;
+
+    @Value("${archive.retention.min-pause:50}")
+    private long minPause;
+
+    @Value("${archive.retention.max-pause:30000}")
+    private long maxPause;
+
+    @Value("${archive.retention.max-replication-lag:30}")
+    private double maxReplicationLag;
+
+    @Value("${archive.retention.max-dead-ratio:0.2}")
+    private double maxDeadRatio;
+
+    @Value("${archive.retention.max-run-time:600000}")
+    private long maxRunTime;
+
+    /**
+     * Create or replace retention policies of specified objects
+     *
+     * @param policies
+     */
+    public void savePolicies(RetentionPolicy[] policies) {
+        List<String> errors = new ArrayList<>();
+
+        try (final Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (final Statement statement = connection.createStatement()) {
+                statement.execute(POLICY_TABLE_STATEMENT);
+            }
+            connection.commit();
+
+            for (RetentionPolicy policy : policies) {
+                try {
+                    validatePolicy(connection, policy);
+                    try (final PreparedStatement statement = connection.prepareStatement(SAVE_POLICY_STATEMENT)) {
+                        statement.setString(1, policy.getObject());
+                        statement.setString(2, policy.getType().name());
+                        statement.setObject(3, policy.getAgeDays());
+                        statement.setString(4, getDateField(policy));
+                        statement.executeUpdate();
+                    }
+                    connection.commit();
+                } catch (Exception e) {
+                    connection.rollback();
+                    logger.error("Error saving retention policy", e);
+                    errors.add(String.format("%s: %s", policy.getObject(), e.getMessage()));
+                }
+            }
+        } catch (Exception e) {
+            errors.add(e.getMessage());
+        }
+
+        if (!errors.isEmpty()) {
+            throw new ArchiveException(errors);
+        }
+    }
+
+    /**
+     * Report retention policies, total purged rows and recent batches of every archive table
+     *
+     * @return
+     */
+    public List<Map<String, Object>> getStatus() {
+        final List<Map<String, Object>> status = new ArrayList<>();
+        try (final Connection connection = dataSource.getConnection()) {
+            for (RetentionPolicy policy : findPolicies(connection)) {
+                final Map<String, Object> object = new HashMap<>();
+                object.put("object", policy.getObject());
+                object.put("type", policy.getType());
+                object.put("ageDays", policy.getAgeDays());
+                object.put("dateField", policy.getDateField());
+                object.put("purgedRows", purgedRows.getOrDefault(policy.getObject(), 0L));
+                final Deque<Map<String, Object>> batches = reports.get(policy.getObject());
+                if (batches != null) {
+                    synchronized (batches) {
+                        object.put("batches", new ArrayList<>(batches));
+                    }
+                }
+                status.add(object);
+            }
+        } catch (Exception e) {
+            throw new ArchiveException(Collections.singletonList(e.getMessage()));
+        }
+        return status;
+    }
+
+    /**
+     * Purges expired rows of every archive table which has a retention policy, within the configured run time
+     */
+    @Scheduled(fixedDelayString = "${archive.retention.delay:60000}")
+    public void purge() {
+        if (!enabled) {
+            return;
+        }
+        final long deadline = System.currentTimeMillis() + maxRunTime;
+        try (final Connection connection = dataSource.getConnection()) {
+            for (RetentionPolicy policy : findPolicies(connection)) {
+                if (System.currentTimeMillis() >= deadline) {
+                    break;
+                }
+                try {
+                    purgeObject(connection, policy, deadline);
+                } catch (Exception e) {
+                    logger.error(String.format("Error purging archive of %s", policy.getObject()), e);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("Error purging archive tables", e);
+        }
+    }
+
+    private void purgeObject(Connection connection, RetentionPolicy policy, long deadline) throws Exception {
+        final String archiveTableName = ArchiveService.ARCHIVE_TABLE_PREFIX + policy.getObject();
+        connection.setAutoCommit(false);
+        if (policy.getType() == RetentionPolicy.Type.AGE &&
+                ArchiveService.ARCHIVED_DATE_COLUMN.equals(policy.getDateField()) &&
+                archivePartitionService.isPartitioned(connection, archiveTableName)) {
+            final String sql = archivePartitionService.getDropExpiredPartitionsSql(connection, archiveTableName,
+                    YearMonth.from(LocalDate.now().minusDays(policy.getAgeDays())));
+            if (!sql.isEmpty()) {
+                logger.info(sql);
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute(sql);
+                }
+            }
+        }
+        connection.commit();
+
+        final String purgeStatement = String.format(PURGE_BATCH_STATEMENT, archiveTableName,
+                policy.getType() == RetentionPolicy.Type.AGE ?
+                        String.format(AGE_CONDITION, DBUtils.quoteIdentifier(policy.getDateField())) :
+                        PLAN_CONDITION);
+        int batchSize = minBatchSize;
+        long pause = minPause;
+        String lastSfid = "";
+        while (System.currentTimeMillis() < deadline) {
+            final long started = System.currentTimeMillis();
+            final long deleted;
+            try (final PreparedStatement statement = connection.prepareStatement(purgeStatement)) {
+                int index = 1;
+                statement.setString(index++, lastSfid);
+                if (policy.getType() == RetentionPolicy.Type.AGE) {
+                    statement.setInt(index++, policy.getAgeDays());
+                } else {
+                    statement.setString(index++, policy.getObject());
+                }
+                statement.setInt(index, batchSize);
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    deleted = resultSet.getLong(1);
+                    lastSfid = resultSet.getString(2);
+                }
+            }
+            connection.commit();
+            final long latency = System.currentTimeMillis() - started;
+            if (deleted == 0) {
+                return;
+            }
+            purgedRows.merge(policy.getObject(), deleted, Long::sum);
+
+            final Map<String, Object> report = readHealth(connection, archiveTableName);
+            final double deadRatio = (Double) report.get("deadRatio");
+            final boolean overloaded = (Double) report.get("replicationLagSeconds") > maxReplicationLag ||
+                    (Long) report.get("autovacuumWorkers") >= (Integer) report.get("autovacuumMaxWorkers") ||
+                    deadRatio > maxDeadRatio;
+            pause = overloaded ? Math.min(pause * 2, maxPause) : Math.max(pause / 2, minPause);
+            report.put("rows", deleted);
+            report.put("batchSize", batchSize);
+            report.put("latencyMillis", latency);
+            report.put("pauseMillis", pause);
+            addReport(policy.getObject(), report);
+            logger.info("purged {} rows of {} in {} ms, dead ratio {}, pausing {} ms", deleted, archiveTableName,
+                    latency, deadRatio, pause);
+
+            if (latency > targetLatency) {
+                batchSize = Math.max(batchSize / 2, minBatchSize);
+            } else if (latency < targetLatency / 2) {
+                batchSize = Math.min(batchSize * 3 / 2, maxBatchSize);
+            }
+            Thread.sleep(pause);
+        }
+    }
+
+    private Map<String, Object> readHealth(Connection connection, String archiveTableName) throws Exception {
+        final Map<String, Object> health = new HashMap<>();
+        final String qualifiedName = DataSourceConfiguration.SCHEMA_NAME + "." + archiveTableName;
+        try (final PreparedStatement statement = connection.prepareStatement(HEALTH_STATEMENT)) {
+            statement.setString(1, qualifiedName);
+            statement.setString(2, qualifiedName);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                final long live = resultSet.getLong("live");
+                final long dead = resultSet.getLong("dead");
+                health.put("replicationLagSeconds", resultSet.getDouble("lag"));
+                health.put("autovacuumWorkers", resultSet.getLong("workers"));
+                health.put("autovacuumMaxWorkers", resultSet.getInt("max_workers"));
+                health.put("liveTuples", live);
+                health.put("deadTuples", dead);
+                health.put("deadRatio", live + dead > 0 ? (double) dead / (live + dead) : 0.0);
+                health.put("sizeBytes", resultSet.getLong("size"));
+            }
+        } finally {
+            connection.commit();
+        }
+        health.put("time", System.currentTimeMillis());
+        return health;
+    }
+
+    private void addReport(String object, Map<String, Object> report) {
+        final Deque<Map<String, Object>> batches = reports.computeIfAbsent(object, e -> new ArrayDeque<>());
+        synchronized (batches) {
+            if (batches.size() == REPORTED_BATCHES) {
+                batches.removeFirst();
+            }
+            batches.addLast(report);
+        }
+    }
+
+    private void validatePolicy(Connection connection, RetentionPolicy policy) throws Exception {
+        if (policy.getType() == null) {
+            throw new IllegalArgumentException("retention policy type is required");
+        }
+        final String archiveTableName = DataSourceConfiguration.SCHEMA_NAME + "." +
+                ArchiveService.ARCHIVE_TABLE_PREFIX + policy.getObject();
+        try (final PreparedStatement statement = connection.prepareStatement(TABLE_EXISTS_STATEMENT)) {
+            statement.setString(1, archiveTableName);
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next() || !resultSet.getBoolean(1)) {
+                    throw new IllegalArgumentException(String.format("archive table of %s doesn't exist",
+                            policy.getObject()));
+                }
+            }
+        }
+        if (policy.getType() == RetentionPolicy.Type.AGE) {
+            if (policy.getAgeDays() == null || policy.getAgeDays() <= 0) {
+                throw new IllegalArgumentException("age retention needs positive ageDays");
+            }
+            try (final PreparedStatement statement = connection.prepareStatement(COLUMN_EXISTS_STATEMENT)) {
+                statement.setString(1, archiveTableName);
+                statement.setString(2, getDateField(policy));
+                try (final ResultSet resultSet = statement.executeQuery()) {
+                    if (!resultSet.next() || !resultSet.getBoolean(1)) {
+                        throw new IllegalArgumentException(String.format("archive table has no column %s",
+                                getDateField(policy)));
+                    }
+                }
+            }
+        }
+    }
+
+    private String getDateField(RetentionPolicy policy) {
+        if (policy.getType() != RetentionPolicy.Type.AGE) {
+            return null;
+        }
+        return policy.getDateField() == null ? ArchiveService.ARCHIVED_DATE_COLUMN :
+                policy.getDateField().toLowerCase();
+    }
+
+    private List<RetentionPolicy> findPolicies(Connection connection) throws Exception {
+        final List<RetentionPolicy> policies = new ArrayList<>();
+        try (final Statement statement = connection.createStatement();
+             final ResultSet exists = statement.executeQuery(POLICY_TABLE_EXISTS_STATEMENT)) {
+            if (!exists.next() || !exists.getBoolean(1)) {
+                return policies;
+            }
+        }
+        try (final Statement statement = connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery(POLICIES_STATEMENT)) {
+            while (resultSet.next()) {
+                final RetentionPolicy policy = new RetentionPolicy();
+                policy.setObject(resultSet.getString("object_name"));
+                policy.setType(RetentionPolicy.Type.valueOf(resultSet.getString("policy_type")));
+                policy.setAgeDays((Integer) resultSet.getObject("age_days"));
+                policy.setDateField(resultSet.getString("date_field"));
+                policies.add(policy);
+            }
+        }
+        return policies;
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service;
+
+import com.cadalys.heroku.config.DataSourceConfiguration;
+import com.cadalys.heroku.utils.DBUtils;
+import org.apache.ddlutils.Platform;
+import org.apache.ddlutils.PlatformFactory;
+import org.apache.ddlutils.model.Database;
+import org.apache.ddlutils.model.Table;
+import org.apache.ddlutils.platform.JdbcModelReader;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide cache of ddlutils table models. Only requested tables are read from the catalog, missing tables are
+ * cached as well. Entries are invalidated by table names published by event triggers over LISTEN/NOTIFY, so the
+ * cache is only trusted while the listener is connected and the event triggers are installed, otherwise every
+ * request reads its tables again.
+ */
+@Service
+public class SchemaModelService {
+
+    public static final String SCHEMA_CHANGE_CHANNEL = "cadarch_schema_change";
+
+    private static final String ALL_TABLES = "*";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Map<String, Optional<Table>> tables = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every invalidation, a model read while the schema changed is not cached
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile boolean eventTriggersInstalled;
+
+    private volatile boolean listening;
+
+    private volatile boolean running;
+
+    private volatile String platformName;
+
+    private Thread listener;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${archive.model.listen-interval:1000}")
+    private long listenInterval;
+
+    @PostConstruct
+    public void init() {
+        try (final Connection connection = dataSource.getConnection()) {
+            final String sql = DBUtils.getSchemaChangeEventTriggerStatement(DataSourceConfiguration.SCHEMA_NAME);
+            logger.info(sql);
+            connection.createStatement().execute(sql);
+            eventTriggersInstalled = true;
+        } catch (Exception e) {
+            logger.warn("Schema change event triggers can't be installed, table models won't be cached: {}",
+                    e.getMessage());
+        }
+
+        if (eventTriggersInstalled) {
+            running = true;
+            listener = new Thread(this::listen, "schema-model-listener");
+            listener.setDaemon(true);
+            listener.start();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (listener != null) {
+            listener.interrupt();
+        }
+    }
+
+    /**
+     * Get models of specified tables of the schema, tables which don't exist are left out of the result
+     *
+     * @param names table names
+     * @return map of table name to table model
+     */
+    public Map<String, Table> getTables(Collection<String> names) throws Exception {
+        final Map<String, Table> result = new HashMap<>();
+        final long loadGeneration = generation.get();
+        final boolean cached = listening;
+        Platform platform = null;
+        Connection connection = null;
+        try {
+            for (String name : names) {
+                Optional<Table> table = cached ? tables.get(name) : null;
+                if (table == null) {
+                    if (connection == null) {
+                        platform = PlatformFactory.createNewPlatformInstance(getPlatformName());
+                        connection = dataSource.getConnection();
+                    }
+                    table = readTable(platform, connection, name);
+                    if (cached && generation.get() == loadGeneration) {
+                        tables.put(name, table);
+                    }
+                }
+                table.ifPresent(e -> result.put(name, e));
+            }
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Name of the ddlutils platform of the datasource
+     *
+     * @return
+     */
+    public String getPlatformName() {
+        if (platformName == null) {
+            platformName = PlatformFactory.createNewPlatformInstance(dataSource).getName();
+        }
+        return platformName;
+    }
+
+    /**
+     * Drop cached models of specified tables, used right after DDL executed by this process, before the
+     * notification is delivered
+     *
+     * @param names table names
+     */
+    public void invalidate(String... names) {
+        generation.incrementAndGet();
+        for (String name : names) {
+            if (ALL_TABLES.equals(name)) {
+                tables.clear();
+            } else {
+                tables.remove(name);
+            }
+        }
+    }
+
+    private Optional<Table> readTable(Platform platform, Connection connection, String name) throws Exception {
+        final JdbcModelReader modelReader = platform.getModelReader();
+        // the table pattern is matched with like, so underscores of salesforce names are escaped
+        modelReader.setDefaultTablePattern(name.replace("_", "\\_"));
+        final Database database = modelReader.getDatabase(connection, DataSourceConfiguration.SCHEMA_NAME, null,
+                DataSourceConfiguration.SCHEMA_NAME, null);
+        return Arrays.stream(database.getTables()).filter(e -> e.getName().equals(name)).findFirst();
+    }
+
+    private void listen() {
+        while (running) {
+            try (final Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(true);
+                try (final Statement statement = connection.createStatement()) {
+                    statement.execute("LISTEN " + SCHEMA_CHANGE_CHANNEL);
+                }
+                final PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                // changes made while the listener was disconnected are unknown
+                invalidate(ALL_TABLES);
+                listening = true;
+                try {
+                    while (running) {
+                        // notifications are only received along with a server round trip
+                        try (final Statement statement = connection.createStatement()) {
+                            statement.execute("SELECT 1");
+                        }
+                        final PGNotification[] notifications = pgConnection.getNotifications();
+                        if (notifications != null) {
+                            for (PGNotification notification : notifications) {
+                                logger.debug("schema change of {}", notification.getParameter());
+                                invalidate(notification.getParameter());
+                            }
+                        }
+                        Thread.sleep(listenInterval);
+                    }
+                } finally {
+                    listening = false;
+                    try (final Statement statement = connection.createStatement()) {
+                        statement.execute("UNLISTEN *");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Error listening for schema changes", e);
+                try {
+                    Thread.sleep(listenInterval);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
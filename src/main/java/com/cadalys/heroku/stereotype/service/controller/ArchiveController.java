@@ -25,15 +25,22 @@
  */
 package com.cadalys.heroku.stereotype.service.controller;
 
+import com.cadalys.heroku.stereotype.service.ArchiveJobService;
+import com.cadalys.heroku.stereotype.service.ArchiveQueueService;
 import com.cadalys.heroku.stereotype.service.ArchiveService;
 import com.cadalys.heroku.archive.ArchiveTableNames;
 import com.cadalys.heroku.archive.ArchiveObjects;
+import com.google.gson.Gson;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
 
@@ -44,29 +51,71 @@ public class ArchiveController {
     @Autowired
     private ArchiveService archiveService;
 
+    @Autowired
+    private ArchiveQueueService archiveQueueService;
+
+    @Autowired
+    private ArchiveJobService archiveJobService;
+
+    @Autowired
+    private Gson gson;
+
     /**
      * Api call to archive specified objects
      *
      * @param objects
-     * @return
+     * @param async   whether to return a job accepted for background execution instead of waiting for the setup
+     * @return setup result of every object, or the accepted job
      */
-    @RequestMapping(method = RequestMethod.POST, value = "/archive")
-    public ResponseEntity<String> archiveObjects(@RequestBody ArchiveObjects objects) {
-        archiveService.checkObjects(objects);
-        return new ResponseEntity<>(HttpStatus.OK);
+    @RequestMapping(method = RequestMethod.POST, value = "/archive", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public ResponseEntity<String> archiveObjects(@RequestBody ArchiveObjects objects,
+            @RequestParam(value = "async", defaultValue = "false") boolean async) {
+        if (async) {
+            return new ResponseEntity<>(gson.toJson(archiveJobService.submitSetup(objects)), HttpStatus.ACCEPTED);
+        }
+        return new ResponseEntity<>(gson.toJson(archiveService.checkObjects(objects)), HttpStatus.OK);
     }
 
     /**
      * Api call to delete triggers of specified objects
      *
      * @param objects
-     * @return
+     * @param async   whether to return a job accepted for background execution instead of waiting for the removal
+     * @return the accepted job when async
      */
-    @RequestMapping(method = RequestMethod.DELETE, value = "/archive")
-    public ResponseEntity<String> deleteTrigger(@RequestBody ArchiveTableNames objects) {
+    @RequestMapping(method = RequestMethod.DELETE, value = "/archive", produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public ResponseEntity<String> deleteTrigger(@RequestBody ArchiveTableNames objects,
+            @RequestParam(value = "async", defaultValue = "false") boolean async) {
+        if (async) {
+            return new ResponseEntity<>(gson.toJson(archiveJobService.submitDeleteTriggers(objects)),
+                    HttpStatus.ACCEPTED);
+        }
         archiveService.deleteObjectsTrigger(objects);
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
+    /**
+     * Api call to get progress of the archive job
+     *
+     * @param id
+     * @return
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/archive/jobs/{id}",
+            produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public @ResponseBody String getJob(@PathVariable("id") String id) {
+        return gson.toJson(archiveJobService.getJob(id));
+    }
+
+    /**
+     * Api call to get depth and lag of the archive queue
+     *
+     * @return
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/archive/queue",
+            produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public @ResponseBody String getQueueStatus() {
+        return gson.toJson(archiveQueueService.getQueueStatus());
+    }
+
 
 }
@@ -1,14 +1,15 @@
 package com.cadalys.heroku.stereotype.service.controller;
 
+import com.cadalys.heroku.stereotype.service.ArchiveStatusCacheService;
+import com.cadalys.heroku.stereotype.service.ArchiveStatusFeedService;
+import com.cadalys.heroku.stereotype.service.ArchiveStatusFilterService;
 import com.cadalys.heroku.stereotype.service.ArchiveStatusService;
 import com.google.gson.Gson;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
-
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @RestController
 public class ArchiveStatusController {
@@ -16,21 +17,56 @@ public class ArchiveStatusController {
     @Autowired
     private ArchiveStatusService archiveStatusService;
 
+    @Autowired
+    private ArchiveStatusCacheService archiveStatusCacheService;
+
+    @Autowired
+    private ArchiveStatusFilterService archiveStatusFilterService;
+
+    @Autowired
+    private ArchiveStatusFeedService archiveStatusFeedService;
+
     @Autowired
     private Gson gson;
 
     @RequestMapping(method = RequestMethod.POST, value = "/archive/status",
             produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
-    public @ResponseBody String getByIds(@RequestBody String body) {
+    public StreamingResponseBody getByIds(@RequestBody String body) {
         final String[] identifiers = gson.fromJson(body, String[].class);
+        archiveStatusService.checkIds(identifiers);
 
-        final List<Map<String, Object>> records;
-        if ((identifiers != null) && (identifiers.length > 0)) {
-            records = archiveStatusService.findByIds(identifiers);
-        } else {
-            records = Collections.emptyList();
-        }
+        // statuses are written as they are read, so large responses aren't held in memory
+        return outputStream -> archiveStatusService.writeByIds(identifiers, outputStream);
+    }
 
-        return gson.toJson(records);
+    /**
+     * Api call to read archive plan changes logged after the cursor returned by the previous call. With wait the
+     * call is held until a change arrives or the wait is over
+     *
+     * @param xid   cursor transaction id, omitted to read from the beginning
+     * @param seq   cursor log id
+     * @param limit maximal number of returned changes
+     * @param wait  milliseconds to wait for a change
+     * @return
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/archive/status/changes",
+            produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public DeferredResult<String> getChanges(@RequestParam(value = "xid", required = false) Long xid,
+                                             @RequestParam(value = "seq", required = false) Long seq,
+                                             @RequestParam(value = "limit", defaultValue = "1000") int limit,
+                                             @RequestParam(value = "wait", defaultValue = "0") long wait) {
+        return archiveStatusFeedService.getChanges(xid, seq, limit, wait);
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/archive/status/cache",
+            produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public @ResponseBody String getCacheMetrics() {
+        return gson.toJson(archiveStatusCacheService.getMetrics());
+    }
+
+    @RequestMapping(method = RequestMethod.GET, value = "/archive/status/filter",
+            produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public @ResponseBody String getFilterMetrics() {
+        return gson.toJson(archiveStatusFilterService.getMetrics());
     }
 }
@@ -34,10 +34,15 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
 
 @RestController
 public class RecordController {
 
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+
     @Autowired
     private RecordService recordService;
 
@@ -53,6 +58,19 @@ public class RecordController {
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
+    /**
+     * Api call to delete archived records sent as newline delimited {object, id} json records. Records are deleted
+     * in batches while the request is read and a json line with the result of every batch is streamed back
+     *
+     * @param request
+     * @return
+     */
+    @RequestMapping(method = RequestMethod.DELETE, value = "/record/stream", consumes = NDJSON_VALUE,
+            produces = NDJSON_VALUE)
+    public StreamingResponseBody deleteRecordStream(HttpServletRequest request) {
+        return outputStream -> recordService.deleteRecordStream(request.getInputStream(), outputStream);
+    }
+
 
 
 }
@@ -0,0 +1,69 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.stereotype.service.controller;
+
+import com.cadalys.heroku.archive.RestoreRequest;
+import com.cadalys.heroku.stereotype.service.RestoreService;
+import com.google.gson.Gson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Collections;
+
+@RestController
+public class RestoreController {
+
+    @Autowired
+    private RestoreService restoreService;
+
+    @Autowired
+    private Gson gson;
+
+    /**
+     * Api call to restore archived rows back into the source table
+     *
+     * @param request
+     * @return identifier of started restore job
+     */
+    @RequestMapping(method = RequestMethod.POST, value = "/restore",
+            produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public @ResponseBody String startRestore(@RequestBody RestoreRequest request) {
+        return gson.toJson(Collections.singletonMap("id", restoreService.startRestore(request)));
+    }
+
+    /**
+     * Api call to get progress of the restore job
+     *
+     * @param id
+     * @return
+     */
+    @RequestMapping(method = RequestMethod.GET, value = "/restore/{id}",
+            produces = MediaType.APPLICATION_JSON_UTF8_VALUE)
+    public @ResponseBody String getStatus(@PathVariable("id") String id) {
+        return gson.toJson(restoreService.getStatus(id));
+    }
+}
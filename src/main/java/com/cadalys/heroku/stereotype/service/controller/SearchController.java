@@ -38,7 +38,9 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
@@ -104,20 +106,21 @@ public class SearchController {
      * </pre>
      */
     @RequestMapping(value = "search", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-    public @ResponseBody String search(@RequestBody String body) {
+    public StreamingResponseBody search(@RequestBody String body) {
         Map<String,Object> searchRequest = gson.fromJson(body, Map.class);
-        Map<String,Object> responseMap = new HashMap<String,Object>();
-        try {
-            Map<String,Object> searchResult = ftsSearchService.search(searchRequest);
-            responseMap.put(Field.RESULT, searchResult);
-            responseMap.put(Field.ERROR,false);
-        } catch (Exception e) {
-            log.error("search error: {}",e.getMessage());
-            responseMap.put(Field.ERROR,true);
-            responseMap.put(Field.ERROR_MSG,e.getMessage());
-        }
-        //null values in searchResult map now should not be ignored
-        return new GsonBuilder().serializeNulls().create().toJson(responseMap);
+        //records are streamed as they are read, a failure to assemble the search is written as before
+        return outputStream -> {
+            try {
+                ftsSearchService.search(searchRequest, outputStream);
+            } catch (SQLException | RuntimeException e) {
+                log.error("search error: {}",e.getMessage());
+                Map<String,Object> responseMap = new HashMap<String,Object>();
+                responseMap.put(Field.ERROR,true);
+                responseMap.put(Field.ERROR_MSG,e.getMessage());
+                outputStream.write(new GsonBuilder().serializeNulls().create().toJson(responseMap)
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+        };
     }
 
 
@@ -0,0 +1,331 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.tier;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes cold tier segment files.
+ * <p/>
+ * A segment consists of three files sharing the segment name:
+ * <ul>
+ * <li>{@code .seg} - gzip compressed column-major values, one column after another, rows sorted by sfid</li>
+ * <li>{@code .idx} - gzip compressed sorted sfids, position of the sfid is the row number in the segment</li>
+ * <li>{@code .meta.json} - {@link SegmentMeta} of the segment</li>
+ * </ul>
+ * The meta file is written last, so a segment without it is incomplete and is ignored. All files and the
+ * directory are synced to disk before {@link #write} returns, so rows may be removed from the database after it.
+ */
+public class SegmentFiles {
+
+    public static final String DATA_EXTENSION = ".seg";
+    public static final String INDEX_EXTENSION = ".idx";
+    public static final String META_EXTENSION = ".meta.json";
+
+    private static final String SFID = "sfid";
+
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Write rows into a new segment
+     *
+     * @param directory     directory of the table segments
+     * @param table         archive table name
+     * @param name          segment name
+     * @param columns       column names
+     * @param rows          row values in the column order
+     * @param archivedDateColumn name of the column whose range is kept in the metadata, may be absent
+     * @return metadata of the written segment
+     * @throws IOException
+     */
+    public static SegmentMeta write(Path directory, String table, String name, String[] columns, List<String[]> rows,
+            String archivedDateColumn) throws IOException {
+        Files.createDirectories(directory);
+        final int sfidIndex = indexOf(columns, SFID);
+        if (sfidIndex < 0) {
+            throw new IOException(String.format("table %s has no sfid column", table));
+        }
+        final int archivedDateIndex = indexOf(columns, archivedDateColumn);
+        rows.sort(Comparator.comparing(e -> e[sfidIndex], Comparator.nullsFirst(Comparator.naturalOrder())));
+
+        try (final DataOutputStream output = openOutput(directory.resolve(name + DATA_EXTENSION))) {
+            output.writeInt(columns.length);
+            output.writeInt(rows.size());
+            for (int column = 0; column < columns.length; column++) {
+                output.writeUTF(columns[column]);
+                for (String[] row : rows) {
+                    writeValue(output, row[column]);
+                }
+            }
+        }
+        try (final DataOutputStream output = openOutput(directory.resolve(name + INDEX_EXTENSION))) {
+            output.writeInt(rows.size());
+            for (String[] row : rows) {
+                // rows without sfid can't be looked up, empty string keeps the index sorted and searchable
+                writeValue(output, row[sfidIndex] == null ? "" : row[sfidIndex]);
+            }
+        }
+
+        final SegmentMeta meta = new SegmentMeta();
+        meta.setTable(table);
+        meta.setName(name);
+        meta.setColumns(columns);
+        meta.setRowCount(rows.size());
+        meta.setCreatedAt(System.currentTimeMillis());
+        for (String[] row : rows) {
+            meta.setMinSfid(min(meta.getMinSfid(), row[sfidIndex]));
+            meta.setMaxSfid(max(meta.getMaxSfid(), row[sfidIndex]));
+            if (archivedDateIndex >= 0) {
+                meta.setMinArchivedDate(min(meta.getMinArchivedDate(), row[archivedDateIndex]));
+                meta.setMaxArchivedDate(max(meta.getMaxArchivedDate(), row[archivedDateIndex]));
+            }
+        }
+
+        final Path metaPath = directory.resolve(name + META_EXTENSION);
+        final Path tempMetaPath = directory.resolve(name + META_EXTENSION + ".tmp");
+        try (final Writer writer = new OutputStreamWriter(new FileOutputStream(tempMetaPath.toFile()),
+                StandardCharsets.UTF_8)) {
+            GSON.toJson(meta, writer);
+        }
+        sync(directory.resolve(name + DATA_EXTENSION));
+        sync(directory.resolve(name + INDEX_EXTENSION));
+        sync(tempMetaPath);
+        Files.move(tempMetaPath, metaPath, StandardCopyOption.ATOMIC_MOVE);
+        // the rename and a newly created table directory are durable only once their directories are synced
+        sync(directory);
+        sync(directory.getParent());
+        return meta;
+    }
+
+    /**
+     * Read segment metadata
+     *
+     * @param metaPath
+     * @return
+     * @throws IOException
+     */
+    public static SegmentMeta readMeta(Path metaPath) throws IOException {
+        try (final Reader reader = new InputStreamReader(new FileInputStream(metaPath.toFile()),
+                StandardCharsets.UTF_8)) {
+            return GSON.fromJson(reader, SegmentMeta.class);
+        }
+    }
+
+    /**
+     * Read sorted sfid index of the segment
+     *
+     * @param directory
+     * @param meta
+     * @return
+     * @throws IOException
+     */
+    public static String[] readIndex(Path directory, SegmentMeta meta) throws IOException {
+        try (final DataInputStream input = openInput(directory.resolve(meta.getName() + INDEX_EXTENSION))) {
+            final String[] sfids = new String[input.readInt()];
+            for (int i = 0; i < sfids.length; i++) {
+                sfids[i] = readValue(input);
+            }
+            return sfids;
+        }
+    }
+
+    /**
+     * Read rows at the specified positions. The segment is streamed once, column by column
+     *
+     * @param directory
+     * @param meta
+     * @param positions row positions, sorted ascending
+     * @return rows as column name to value maps, in the order of positions
+     * @throws IOException
+     */
+    public static List<Map<String, Object>> readRows(Path directory, SegmentMeta meta, int[] positions)
+            throws IOException {
+        final List<Map<String, Object>> rows = new ArrayList<>(positions.length);
+        for (int i = 0; i < positions.length; i++) {
+            rows.add(new HashMap<>());
+        }
+        try (final DataInputStream input = openInput(directory.resolve(meta.getName() + DATA_EXTENSION))) {
+            final int columnCount = input.readInt();
+            final int rowCount = input.readInt();
+            for (int column = 0; column < columnCount; column++) {
+                final String columnName = input.readUTF();
+                int next = 0;
+                for (int row = 0; row < rowCount; row++) {
+                    if (next < positions.length && positions[next] == row) {
+                        final String value = readValue(input);
+                        while (next < positions.length && positions[next] == row) {
+                            rows.get(next++).put(columnName, value);
+                        }
+                    } else {
+                        skipValue(input);
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Pass rows of the segment to the handler one by one. Only the selected columns are decoded, values of a
+     * segment are column-major, so they are held for the segment while its rows are handed out
+     *
+     * @param directory
+     * @param meta
+     * @param columns   names of the columns to read
+     * @param handler   receives every row as column name to value map, returns false to stop
+     * @return false when the handler stopped the scan
+     * @throws IOException
+     */
+    public static boolean scanRows(Path directory, SegmentMeta meta, Collection<String> columns,
+            Predicate<Map<String, Object>> handler) throws IOException {
+        final List<String> names = new ArrayList<>();
+        final List<String[]> values = new ArrayList<>();
+        try (final DataInputStream input = openInput(directory.resolve(meta.getName() + DATA_EXTENSION))) {
+            final int columnCount = input.readInt();
+            final int rowCount = input.readInt();
+            for (int column = 0; column < columnCount; column++) {
+                final String columnName = input.readUTF();
+                final boolean selected = columns.stream().anyMatch(columnName::equalsIgnoreCase);
+                final String[] columnValues = selected ? new String[rowCount] : null;
+                for (int row = 0; row < rowCount; row++) {
+                    if (selected) {
+                        columnValues[row] = readValue(input);
+                    } else {
+                        skipValue(input);
+                    }
+                }
+                if (selected) {
+                    names.add(columnName);
+                    values.add(columnValues);
+                }
+            }
+        }
+        for (int row = 0; row < meta.getRowCount(); row++) {
+            final Map<String, Object> rowValues = new HashMap<>();
+            for (int column = 0; column < names.size(); column++) {
+                rowValues.put(names.get(column), values.get(column)[row]);
+            }
+            if (!handler.test(rowValues)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void sync(Path path) throws IOException {
+        if (path == null) {
+            return;
+        }
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static DataOutputStream openOutput(Path path) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                new FileOutputStream(path.toFile()))));
+    }
+
+    private static DataInputStream openInput(Path path) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(path.toFile()))));
+    }
+
+    private static void writeValue(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+        } else {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static String readValue(DataInputStream input) throws IOException {
+        final int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipValue(DataInputStream input) throws IOException {
+        int remaining = input.readInt();
+        while (remaining > 0) {
+            final int skipped = input.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String min(String current, String value) {
+        return value == null || (current != null && current.compareTo(value) <= 0) ? current : value;
+    }
+
+    private static String max(String current, String value) {
+        return value == null || (current != null && current.compareTo(value) >= 0) ? current : value;
+    }
+}
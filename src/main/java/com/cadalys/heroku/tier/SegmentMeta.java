@@ -0,0 +1,126 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.tier;
+
+/**
+ * Metadata of a cold tier segment file. Stored next to the segment as json and kept in memory, so lookups
+ * can skip segments by sfid and archive date ranges without touching the files
+ *
+ */
+public class SegmentMeta {
+
+    private String table;
+    private String name;
+    private String[] columns;
+    private int rowCount;
+    private String minSfid;
+    private String maxSfid;
+    private String minArchivedDate;
+    private String maxArchivedDate;
+    private long createdAt;
+
+    public String getTable() {
+        return table;
+    }
+
+    public void setTable(String table) {
+        this.table = table;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    public void setColumns(String[] columns) {
+        this.columns = columns;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public void setRowCount(int rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    public String getMinSfid() {
+        return minSfid;
+    }
+
+    public void setMinSfid(String minSfid) {
+        this.minSfid = minSfid;
+    }
+
+    public String getMaxSfid() {
+        return maxSfid;
+    }
+
+    public void setMaxSfid(String maxSfid) {
+        this.maxSfid = maxSfid;
+    }
+
+    public String getMinArchivedDate() {
+        return minArchivedDate;
+    }
+
+    public void setMinArchivedDate(String minArchivedDate) {
+        this.minArchivedDate = minArchivedDate;
+    }
+
+    public String getMaxArchivedDate() {
+        return maxArchivedDate;
+    }
+
+    public void setMaxArchivedDate(String maxArchivedDate) {
+        this.maxArchivedDate = maxArchivedDate;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * Check whether sfid may be stored in the segment
+     *
+     * @param sfid
+     * @return
+     */
+    public boolean mayContain(String sfid) {
+        return minSfid != null && sfid.compareTo(minSfid) >= 0 && sfid.compareTo(maxSfid) <= 0;
+    }
+}
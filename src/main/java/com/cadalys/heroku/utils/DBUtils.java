@@ -25,41 +25,55 @@
  */
 package com.cadalys.heroku.utils;
 
+import com.cadalys.heroku.stereotype.service.ArchiveQueueService;
+import com.cadalys.heroku.stereotype.service.ArchiveStatusCacheService;
+import com.cadalys.heroku.stereotype.service.ArchiveStatusFeedService;
+import com.cadalys.heroku.stereotype.service.AttachmentBlobService;
+import com.cadalys.heroku.stereotype.service.SchemaModelService;
 import com.cadalys.heroku.stereotype.service.ArchiveService;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
 public class DBUtils {
 
+    /**
+     * Session setting which makes archive triggers skip archiving, used when rows were already archived
+     * by the application
+     */
+    public static final String SKIP_ARCHIVE_SETTING = "cadarch.skip_archive";
+
+    private static final String FUNCTION_BODY_DELIMITER = "$BODY$";
+
+    private static final Pattern DOLLAR_QUOTE_PATTERN = Pattern.compile("\\$[A-Za-z_]*\\$");
 
     /**
-     * Util method that generate sql script to create archive trigger for specified table
+     * Util method that generate sql script to create archive trigger for specified table. The column list is
+     * resolved at setup time, so the INSERT inside the procedure is static and its plan is cached
      *
      * @param schema
      * @param table
+     * @param columns names of the source table columns to archive
+     * @param queued  whether deleted rows go to the archive queue instead of the archive table
      * @return sql script
      */
-    public static String getArchiveTriggerStatement(String schema, String table) {
+    public static String getArchiveTriggerStatement(String schema, String table, List<String> columns,
+            boolean queued) {
         return String.format("CREATE OR REPLACE FUNCTION archive_procedure_%1$s()\n" +
                 "                    RETURNS trigger AS\n" +
                 "                            $BODY$\n" +
                 "                    BEGIN\n" +
+                "                    IF current_setting('" + SKIP_ARCHIVE_SETTING + "', true) = 'on' THEN\n" +
+                "                    RETURN OLD;\n" +
+                "                    END IF;\n" +
                 "                    IF EXISTS(SELECT * FROM %2$s.cadarch__archive_plan__c WHERE " +
                 "cadarch__plan_type__c = 'Archive' and LOWER(cadarch__type__c) = LOWER('%1$s') and " +
                 "cadarch__sourceid__c=OLD.sfid ) THEN\n" +
-                "                    EXECUTE 'INSERT INTO %2$s.a__%1$s(' || ARRAY_TO_STRING(ARRAY(SELECT COLUMN_NAME " +
-                ":: VARCHAR(50)\n" +
-                "                        FROM INFORMATION_SCHEMA.COLUMNS\n" +
-                "                        WHERE\n" +
-                "                        TABLE_NAME = '%1$s' AND\n" +
-                "                        table_schema = '%2$s'\n" +
-                "                        ORDER BY ORDINAL_POSITION\n" +
-                "                        ), ', ') || ')' || ' SELECT $1.' ||\n" +
-                "                        ARRAY_TO_STRING(ARRAY(SELECT COLUMN_NAME :: VARCHAR(50)\n" +
-                "                        FROM INFORMATION_SCHEMA.COLUMNS\n" +
-                "                        WHERE\n" +
-                "                        TABLE_NAME = '%1$s' AND table_schema = '%2$s'\n" +
-                "                        ORDER BY ORDINAL_POSITION\n" +
-                "                        ), ', $1.')\n" +
-                "                        USING OLD;\n" +
+                "                    INSERT INTO %3$s\n" +
+                "                        VALUES (%4$s);\n" +
                 "                    END IF;\n" +
                 "                    RETURN OLD;\n" +
                 "                    END;\n" +
@@ -68,8 +82,323 @@ public class DBUtils {
                 "                    DROP TRIGGER IF EXISTS a__%1$s_delete ON %2$s.%1$s;\n" +
                 "                    CREATE TRIGGER a__%1$s_delete BEFORE DELETE ON %2$s.%1$s FOR EACH ROW EXECUTE " +
                 "PROCEDURE\n" +
-                "                archive_procedure_%1$s();", table, schema);
+                "                archive_procedure_%1$s();", table, schema, getArchiveInsertTarget(schema, table, columns, queued),
+                getArchiveInsertValues(table, columns, queued, "OLD"));
+
+    }
+
+    /**
+     * Util method that generate sql script to create statement level archive trigger for specified table.
+     * Deleted rows are read from the transition table and archived with a single INSERT ... SELECT
+     *
+     * @param schema
+     * @param table
+     * @param columns names of the source table columns to archive
+     * @param queued  whether deleted rows go to the archive queue instead of the archive table
+     * @return sql script
+     */
+    public static String getArchiveStatementTriggerStatement(String schema, String table, List<String> columns,
+            boolean queued) {
+        return String.format("CREATE OR REPLACE FUNCTION archive_statement_procedure_%1$s()\n" +
+                "                    RETURNS trigger AS\n" +
+                "                            $BODY$\n" +
+                "                    BEGIN\n" +
+                "                    IF current_setting('" + SKIP_ARCHIVE_SETTING + "', true) = 'on' THEN\n" +
+                "                    RETURN NULL;\n" +
+                "                    END IF;\n" +
+                "                    INSERT INTO %3$s\n" +
+                "                        SELECT %4$s FROM old_rows o WHERE EXISTS(SELECT 1 FROM " +
+                "%2$s.cadarch__archive_plan__c p WHERE p.cadarch__plan_type__c = 'Archive' and " +
+                "LOWER(p.cadarch__type__c) = LOWER('%1$s') and p.cadarch__sourceid__c = o.sfid);\n" +
+                "                    RETURN NULL;\n" +
+                "                    END;\n" +
+                "                    $BODY$\n" +
+                "                    LANGUAGE plpgsql;\n" +
+                "                    DROP TRIGGER IF EXISTS a__%1$s_delete ON %2$s.%1$s;\n" +
+                "                    CREATE TRIGGER a__%1$s_delete AFTER DELETE ON %2$s.%1$s REFERENCING OLD TABLE " +
+                "AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE\n" +
+                "                archive_statement_procedure_%1$s();", table, schema,
+                getArchiveInsertTarget(schema, table, columns, queued), getArchiveInsertValues(table, columns, queued, "o"));
+
+    }
+
+    /**
+     * Util method that generate the insert target of archived rows, the archive table or the archive queue
+     *
+     * @param schema
+     * @param table
+     * @param columns names of the source table columns to archive
+     * @param queued  whether deleted rows go to the archive queue instead of the archive table
+     * @return table with its column list
+     */
+    public static String getArchiveInsertTarget(String schema, String table, List<String> columns, boolean queued) {
+        if (queued) {
+            return schema + "." + ArchiveQueueService.QUEUE_TABLE_NAME + "(object_name, row_data)";
+        }
+        return schema + "." + ArchiveService.ARCHIVE_TABLE_PREFIX + table + "(" + buildColumnList(columns, null) + ")";
+    }
+
+    /**
+     * Util method that generate the archived values of a deleted row matching {@link #getArchiveInsertTarget}
+     *
+     * @param table
+     * @param columns names of the source table columns to archive
+     * @param queued  whether deleted rows go to the archive queue instead of the archive table
+     * @param row     alias of the deleted row
+     * @return value list
+     */
+    public static String getArchiveInsertValues(String table, List<String> columns, boolean queued, String row) {
+        if (queued) {
+            return "'" + table + "', to_jsonb(" + row + ")";
+        }
+        return buildColumnList(columns, row);
+    }
 
+    /**
+     * Util method that generate sql script to create archive queue table used by {@link ArchiveQueueService}
+     *
+     * @param schema
+     * @return sql script
+     */
+    public static String getArchiveQueueTableStatement(String schema) {
+        return String.format("CREATE TABLE IF NOT EXISTS %1$s.%2$s (\n" +
+                "                    id bigserial PRIMARY KEY,\n" +
+                "                    object_name varchar(255) NOT NULL,\n" +
+                "                    row_data jsonb NOT NULL,\n" +
+                "                    queued_at timestamptz NOT NULL DEFAULT now());\n" +
+                "                    CREATE INDEX IF NOT EXISTS %2$s_object_idx ON %1$s.%2$s (object_name, id);",
+                schema, ArchiveQueueService.QUEUE_TABLE_NAME);
+    }
+
+    /**
+     * Util method that generate sql script to create trigger publishing sfids of changed archive plan rows over
+     * the {@link ArchiveStatusCacheService#STATUS_CHANGE_CHANNEL} notification channel. The trigger also logs the
+     * changed rows with the id of the writing transaction, the log is read by the change feed
+     *
+     * @param schema
+     * @param table archive plan table
+     * @return sql script
+     */
+    public static String getStatusChangeTriggerStatement(String schema, String table) {
+        return String.format("CREATE TABLE IF NOT EXISTS %1$s.%4$s (\n" +
+                "                    id bigserial PRIMARY KEY,\n" +
+                "                    xid bigint NOT NULL DEFAULT txid_current(),\n" +
+                "                    sfid varchar(18) NOT NULL,\n" +
+                "                    lastmodifieddate timestamp,\n" +
+                "                    deleted boolean NOT NULL,\n" +
+                "                    logged_at timestamptz NOT NULL DEFAULT now());\n" +
+                "                    CREATE INDEX IF NOT EXISTS %4$s_xid_idx ON %1$s.%4$s (xid, id);\n" +
+                "                    CREATE INDEX IF NOT EXISTS %4$s_logged_at_idx ON %1$s.%4$s (logged_at);\n" +
+                "                    CREATE OR REPLACE FUNCTION %1$s.cadarch_status_change() RETURNS trigger AS\n" +
+                "                    $BODY$\n" +
+                "                    BEGIN\n" +
+                "                    IF TG_OP <> 'INSERT' AND OLD.sfid IS NOT NULL THEN\n" +
+                "                    PERFORM pg_notify('%3$s', OLD.sfid);\n" +
+                "                    END IF;\n" +
+                "                    IF TG_OP = 'DELETE' OR NEW.sfid IS DISTINCT FROM OLD.sfid AND OLD.sfid IS NOT NULL THEN\n" +
+                "                    INSERT INTO %1$s.%4$s (sfid, lastmodifieddate, deleted) VALUES (OLD.sfid, OLD.lastmodifieddate, true);\n" +
+                "                    END IF;\n" +
+                "                    IF TG_OP = 'INSERT' AND NEW.sfid IS NOT NULL OR\n" +
+                "                    TG_OP = 'UPDATE' AND NEW.sfid IS DISTINCT FROM OLD.sfid AND NEW.sfid IS NOT NULL THEN\n" +
+                "                    PERFORM pg_notify('%3$s', NEW.sfid);\n" +
+                "                    END IF;\n" +
+                "                    IF TG_OP <> 'DELETE' AND NEW.sfid IS NOT NULL THEN\n" +
+                "                    INSERT INTO %1$s.%4$s (sfid, lastmodifieddate, deleted) VALUES (NEW.sfid, NEW.lastmodifieddate, false);\n" +
+                "                    END IF;\n" +
+                "                    RETURN NULL;\n" +
+                "                    END;\n" +
+                "                    $BODY$\n" +
+                "                    LANGUAGE plpgsql;\n" +
+                "                    DROP TRIGGER IF EXISTS %2$s_status_change ON %1$s.%2$s;\n" +
+                "                    CREATE TRIGGER %2$s_status_change AFTER INSERT OR UPDATE OR DELETE ON %1$s.%2$s " +
+                "FOR EACH ROW EXECUTE PROCEDURE %1$s.cadarch_status_change();", schema, table,
+                ArchiveStatusCacheService.STATUS_CHANGE_CHANNEL, ArchiveStatusFeedService.CHANGE_LOG_TABLE_NAME);
+    }
+
+    /**
+     * Util method that generate sql script to create event triggers publishing names of tables changed by DDL
+     * commands in the schema over the {@link SchemaModelService#SCHEMA_CHANGE_CHANNEL} notification channel.
+     * Dropped indexes can't be resolved to their table anymore, so they are published as a wildcard
+     *
+     * @param schema
+     * @return sql script
+     */
+    public static String getSchemaChangeEventTriggerStatement(String schema) {
+        return String.format("CREATE OR REPLACE FUNCTION %1$s.cadarch_ddl_command_end() RETURNS event_trigger AS\n" +
+                "                    $BODY$\n" +
+                "                    DECLARE r record;\n" +
+                "                    BEGIN\n" +
+                "                    FOR r IN SELECT COALESCE(it.relname, c.relname) AS table_name\n" +
+                "                    FROM pg_event_trigger_ddl_commands() e\n" +
+                "                    LEFT JOIN pg_index i ON i.indexrelid = e.objid\n" +
+                "                    LEFT JOIN pg_class it ON it.oid = i.indrelid\n" +
+                "                    LEFT JOIN pg_class c ON c.oid = e.objid\n" +
+                "                    WHERE e.classid = 'pg_class'::regclass AND e.schema_name = '%1$s' LOOP\n" +
+                "                    PERFORM pg_notify('%2$s', r.table_name);\n" +
+                "                    END LOOP;\n" +
+                "                    END;\n" +
+                "                    $BODY$\n" +
+                "                    LANGUAGE plpgsql;\n" +
+                "                    CREATE OR REPLACE FUNCTION %1$s.cadarch_sql_drop() RETURNS event_trigger AS\n" +
+                "                    $BODY$\n" +
+                "                    DECLARE r record;\n" +
+                "                    BEGIN\n" +
+                "                    FOR r IN SELECT CASE WHEN object_type = 'table' THEN object_name ELSE '*' END\n" +
+                "                    AS table_name FROM pg_event_trigger_dropped_objects()\n" +
+                "                    WHERE schema_name = '%1$s' AND object_type IN ('table', 'index') LOOP\n" +
+                "                    PERFORM pg_notify('%2$s', r.table_name);\n" +
+                "                    END LOOP;\n" +
+                "                    END;\n" +
+                "                    $BODY$\n" +
+                "                    LANGUAGE plpgsql;\n" +
+                "                    DO $DO$ BEGIN\n" +
+                "                    IF NOT EXISTS (SELECT 1 FROM pg_event_trigger WHERE evtname = 'cadarch_ddl_command_end') THEN\n" +
+                "                    CREATE EVENT TRIGGER cadarch_ddl_command_end ON ddl_command_end\n" +
+                "                    EXECUTE PROCEDURE %1$s.cadarch_ddl_command_end();\n" +
+                "                    END IF;\n" +
+                "                    IF NOT EXISTS (SELECT 1 FROM pg_event_trigger WHERE evtname = 'cadarch_sql_drop') THEN\n" +
+                "                    CREATE EVENT TRIGGER cadarch_sql_drop ON sql_drop\n" +
+                "                    EXECUTE PROCEDURE %1$s.cadarch_sql_drop();\n" +
+                "                    END IF;\n" +
+                "                    END $DO$;",
+                schema, SchemaModelService.SCHEMA_CHANGE_CHANNEL);
+    }
+
+    /**
+     * Util method that generate sql script to add the archived date column to a plain archive table. Rows
+     * archived before keep a null archived date, so the table isn't rewritten
+     *
+     * @param schema
+     * @param archiveTable
+     * @return sql script
+     */
+    public static String getArchivedDateColumnStatement(String schema, String archiveTable) {
+        return String.format("ALTER TABLE %1$s.%2$s ADD COLUMN IF NOT EXISTS %3$s timestamp; " +
+                "ALTER TABLE %1$s.%2$s ALTER COLUMN %3$s SET DEFAULT now();", schema, archiveTable,
+                ArchiveService.ARCHIVED_DATE_COLUMN);
+    }
+
+    /**
+     * Util method that generate sql script to create table recording how archive triggers of every object were
+     * set up: the parent reference, the archive mode and the source columns the archive trigger lists, so readers
+     * don't have to parse the generated trigger functions
+     *
+     * @param schema
+     * @return sql script
+     */
+    public static String getArchiveSetupTableStatement(String schema) {
+        return String.format("CREATE TABLE IF NOT EXISTS %1$s.%2$s (\n" +
+                "                    object_name varchar(255) PRIMARY KEY,\n" +
+                "                    parent_obj varchar(255),\n" +
+                "                    ref_field varchar(255),\n" +
+                "                    archive_mode varchar(16),\n" +
+                "                    archived_columns text[],\n" +
+                "                    updated_at timestamptz NOT NULL DEFAULT now());",
+                schema, ArchiveService.ARCHIVE_SETUP_TABLE_NAME);
+    }
+
+    /**
+     * Util method that generate sql script to create partial expression index matching the archive plan
+     * lookup done by archive triggers, so every deleted row costs an index probe instead of a plan table scan.
+     * The index is built concurrently, so the script has to run outside of a transaction block
+     *
+     * @param schema
+     * @return sql script
+     */
+    public static String getArchivePlanIndexStatement(String schema) {
+        return String.format("CREATE INDEX CONCURRENTLY IF NOT EXISTS cadarch__archive_plan__c_archive_idx ON " +
+                "%1$s.cadarch__archive_plan__c (LOWER(cadarch__type__c), cadarch__sourceid__c) WHERE " +
+                "cadarch__plan_type__c = 'Archive';", schema);
+    }
+
+    /**
+     * Util method that generate sql condition matching rows of the table planned for archiving
+     *
+     * @param schema
+     * @param table
+     * @param alias  alias of the table rows in the enclosing query
+     * @return sql condition
+     */
+    public static String getArchivePlanCondition(String schema, String table, String alias) {
+        return String.format("EXISTS(SELECT 1 FROM %1$s.cadarch__archive_plan__c p WHERE p.cadarch__plan_type__c = " +
+                "'Archive' and LOWER(p.cadarch__type__c) = LOWER('%2$s') and p.cadarch__sourceid__c = %3$s.sfid)",
+                schema, table, alias);
+    }
+
+    /**
+     * Util method that splits sql script into single statements. Semicolons inside quoted literals, quoted
+     * identifiers, dollar quoted bodies and line comments don't end a statement
+     *
+     * @param sql script
+     * @return statements without trailing semicolons
+     */
+    public static List<String> splitStatements(String sql) {
+        final List<String> statements = new ArrayList<>();
+        final Matcher dollarQuote = DOLLAR_QUOTE_PATTERN.matcher(sql);
+        int start = 0;
+        int i = 0;
+        while (i < sql.length()) {
+            final char c = sql.charAt(i);
+            if (c == '\'' || c == '"') {
+                final int end = sql.indexOf(c, i + 1);
+                i = end < 0 ? sql.length() : end + 1;
+            } else if (c == '-' && sql.startsWith("--", i)) {
+                final int end = sql.indexOf('\n', i);
+                i = end < 0 ? sql.length() : end + 1;
+            } else if (c == '$' && dollarQuote.region(i, sql.length()).lookingAt()) {
+                final String tag = dollarQuote.group();
+                final int end = sql.indexOf(tag, dollarQuote.end());
+                i = end < 0 ? sql.length() : end + tag.length();
+            } else if (c == ';') {
+                addStatement(statements, sql.substring(start, i));
+                start = ++i;
+            } else {
+                i++;
+            }
+        }
+        addStatement(statements, sql.substring(start));
+        return statements;
+    }
+
+    private static void addStatement(List<String> statements, String statement) {
+        final String trimmed = statement.trim();
+        if (!trimmed.isEmpty()) {
+            statements.add(trimmed);
+        }
+    }
+
+    /**
+     * Util method that extracts body of the function created by the sql script, the same way it is stored in
+     * pg_proc.prosrc
+     *
+     * @param sql script created by one of trigger statement methods
+     * @return function body
+     */
+    public static String getFunctionBody(String sql) {
+        final int start = sql.indexOf(FUNCTION_BODY_DELIMITER) + FUNCTION_BODY_DELIMITER.length();
+        return sql.substring(start, sql.indexOf(FUNCTION_BODY_DELIMITER, start));
+    }
+
+    /**
+     * Util method that builds comma separated list of quoted column names
+     *
+     * @param columns
+     * @param qualifier optional row or alias name to prefix every column with
+     * @return
+     */
+    public static String buildColumnList(List<String> columns, String qualifier) {
+        final String prefix = qualifier == null ? "" : qualifier + ".";
+        return columns.stream().map(e -> prefix + quoteIdentifier(e)).collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Util method that quotes sql identifier
+     *
+     * @param identifier
+     * @return
+     */
+    public static String quoteIdentifier(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
     }
 
 
@@ -112,6 +441,77 @@ public class DBUtils {
 
     }
 
+    /**
+     * Util method that generate sql for trigger that moves attachment bodies inserted into the archive table to
+     * the deduplicated blob store. Bodies are stored once per sha256 hash as large objects, the archive row keeps
+     * only the hash. Blob rows are locked for key share, so the blob store cleanup can't remove a blob which is
+     * being referenced
+     *
+     * @param schema
+     * @param table
+     * @param bodyColumn
+     * @param binary     whether the body column is bytea, text bodies are stored as utf8
+     * @return
+     */
+    public static String getAttachmentBlobTriggerStatement(String schema, String table, String bodyColumn,
+            boolean binary) {
+        return String.format("CREATE OR REPLACE FUNCTION store_attachment_body_%1$s()\n" +
+                "                    RETURNS trigger AS\n" +
+                "                            $BODY$\n" +
+                "                    BEGIN\n" +
+                "                    IF NEW.%3$s IS NOT NULL THEN\n" +
+                "                    NEW.%5$s = %2$s.cadarch_store_blob(%4$s);\n" +
+                "                    NEW.%3$s = NULL;\n" +
+                "                    END IF;\n" +
+                "                    RETURN NEW;\n" +
+                "                    END;\n" +
+                "                    $BODY$\n" +
+                "                    LANGUAGE plpgsql;\n" +
+                "                    CREATE TABLE IF NOT EXISTS %2$s.%6$s (\n" +
+                "                    hash varchar(64) PRIMARY KEY,\n" +
+                "                    size bigint NOT NULL,\n" +
+                "                    lo oid NOT NULL,\n" +
+                "                    created_at timestamptz NOT NULL DEFAULT now());\n" +
+                "                    CREATE OR REPLACE FUNCTION %2$s.cadarch_store_blob(content bytea)\n" +
+                "                    RETURNS varchar AS\n" +
+                "                            $BODY$\n" +
+                "                    DECLARE\n" +
+                "                    h varchar(64) := encode(sha256(content), 'hex');\n" +
+                "                    o oid;\n" +
+                "                    BEGIN\n" +
+                "                    PERFORM 1 FROM %2$s.%6$s WHERE hash = h FOR KEY SHARE;\n" +
+                "                    IF NOT FOUND THEN\n" +
+                "                    o := lo_from_bytea(0, content);\n" +
+                "                    INSERT INTO %2$s.%6$s (hash, size, lo) VALUES (h, length(content), o)\n" +
+                "                        ON CONFLICT (hash) DO NOTHING;\n" +
+                "                    IF NOT FOUND THEN\n" +
+                "                    PERFORM lo_unlink(o);\n" +
+                "                    PERFORM 1 FROM %2$s.%6$s WHERE hash = h FOR KEY SHARE;\n" +
+                "                    END IF;\n" +
+                "                    END IF;\n" +
+                "                    RETURN h;\n" +
+                "                    END;\n" +
+                "                    $BODY$\n" +
+                "                    LANGUAGE plpgsql;\n" +
+                "                    ALTER TABLE %2$s.a__%1$s ADD COLUMN IF NOT EXISTS %5$s varchar(64);\n" +
+                "                    DROP TRIGGER IF EXISTS a__%1$s_blob ON %2$s.a__%1$s;\n" +
+                "                    CREATE TRIGGER a__%1$s_blob BEFORE INSERT ON %2$s.a__%1$s FOR EACH ROW EXECUTE " +
+                "PROCEDURE store_attachment_body_%1$s();\n", table, schema, bodyColumn,
+                getBlobContentExpression("NEW." + bodyColumn, binary), AttachmentBlobService.BODY_HASH_COLUMN,
+                AttachmentBlobService.BLOB_TABLE_NAME);
+    }
+
+    /**
+     * Util method that converts body column value to the bytea stored in the blob store
+     *
+     * @param value
+     * @param binary whether the body column is bytea
+     * @return
+     */
+    public static String getBlobContentExpression(String value, boolean binary) {
+        return binary ? value : "convert_to(" + value + ", 'UTF8')";
+    }
+
     private static void buildParentExtColumnLinkWithRefColumn(String refField, StringBuilder sqlBuilder,
             String parentExtIdColumn) {
         sqlBuilder.append("NEW.");
@@ -0,0 +1,129 @@
+/**
+ *  Copyright (c), Cadalys, Inc.
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without modification,
+ *     are permitted provided that the following conditions are met:
+ *
+ *  - Redistributions of source code must retain the above copyright notice,
+ *      this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright notice,
+ *      this list of conditions and the following disclaimer in the documentation
+ *      and/or other materials provided with the distribution.
+ *  - Neither the name of the Cadalys, Inc., nor the names of its contributors
+ *      may be used to endorse or promote products derived from this software without
+ *      specific prior written permission.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ *  ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL
+ *  THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ *  EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS
+ *  OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY
+ *  OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ *  ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.cadalys.heroku.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of sfids. A negative answer is definite, a positive one is wrong with the false positive
+ * probability the filter was sized for, as long as no more than the expected number of sfids are added.
+ * Sfids can be added concurrently with lookups, they can't be removed.
+ */
+public class SfidBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final AtomicLong insertions = new AtomicLong();
+
+    /**
+     * @param expectedInsertions
+     * @param falsePositiveProbability
+     */
+    public SfidBloomFilter(long expectedInsertions, double falsePositiveProbability) {
+        final long expected = Math.max(expectedInsertions, 1);
+        final long optimalBits = (long) Math.ceil(-expected * Math.log(falsePositiveProbability) /
+                (Math.log(2) * Math.log(2)));
+        bits = new AtomicLongArray((int) Math.min((optimalBits + 63) / 64, Integer.MAX_VALUE));
+        bitCount = (long) bits.length() * 64;
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / expected * Math.log(2)));
+    }
+
+    public void add(String sfid) {
+        final long[] hashes = hash(sfid);
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = index(hashes, i);
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+            long value;
+            do {
+                value = bits.get(word);
+                if ((value & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, value, value | mask));
+        }
+        insertions.incrementAndGet();
+    }
+
+    public boolean mightContain(String sfid) {
+        final long[] hashes = hash(sfid);
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = index(hashes, i);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getSizeInBytes() {
+        return bitCount / 8;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    public long getInsertions() {
+        return insertions.get();
+    }
+
+    /**
+     * False positive probability estimated from the number of added sfids
+     *
+     * @return
+     */
+    public double getExpectedFalsePositiveProbability() {
+        return Math.pow(1 - Math.exp(-(double) hashCount * insertions.get() / bitCount), hashCount);
+    }
+
+    private long index(long[] hashes, int i) {
+        // double hashing, every index is derived from the same two hashes
+        return Math.floorMod(hashes[0] + i * hashes[1], bitCount);
+    }
+
+    private long[] hash(String sfid) {
+        long h1 = 0xcbf29ce484222325L;
+        long h2 = 0x84222325cbf29ce4L;
+        for (byte b : sfid.getBytes(StandardCharsets.UTF_8)) {
+            h1 = (h1 ^ b) * 0x100000001b3L;
+            h2 = (h2 + b) * 0xff51afd7ed558ccdL;
+        }
+        return new long[]{mix(h1), mix(h2) | 1};
+    }
+
+    private long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}